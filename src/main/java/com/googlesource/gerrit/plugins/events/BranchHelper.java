@@ -25,6 +25,7 @@ import com.google.gerrit.server.project.ProjectState;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.events.ParsedEventCache.ParsedEvent;
 
 public class BranchHelper {
   protected final ProjectCache projectCache;
@@ -44,6 +45,14 @@ public class BranchHelper {
     }
   }
 
+  public boolean isVisibleTo(ParsedEvent event, IdentifiedUser user) {
+    try {
+      return isVisibleTo(event.branch, user);
+    } catch (PermissionBackendException e) {
+      return false;
+    }
+  }
+
   public boolean isVisibleTo(BranchNameKey branchName, IdentifiedUser user)
       throws PermissionBackendException {
     if (branchName == null) {
@@ -0,0 +1,132 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import static com.google.common.base.Strings.emptyToNull;
+import static com.google.common.base.Strings.nullToEmpty;
+
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.RefEvent;
+
+/**
+ * What stream sessions need to know about an event to decide whether to send it (its type and
+ * branch), taken from the event when it is stored, so that sessions do not have to read or parse
+ * the events they do not send.
+ *
+ * <p>Metadata is encoded as a single line of tab separated fields: type, project, ref, change
+ * number and eventCreatedOn. Missing fields are empty, or 0 for numbers. Only events of a branch
+ * (RefEvents) have metadata, since the branch of other events can only be found in their json, as
+ * do events with fields which cannot be encoded (containing tabs or newlines).
+ */
+public class EventMetadata {
+  protected static final char SEPARATOR = '\t';
+  protected static final int FIELDS = 5;
+
+  public final String type; // null if none
+  public final String project; // null if none
+  public final String ref; // null if none
+  public final int change; // 0 if none
+  public final long createdOn; // eventCreatedOn, in seconds
+
+  public EventMetadata(String type, String project, String ref, int change, long createdOn) {
+    this.type = type;
+    this.project = project;
+    this.ref = ref;
+    this.change = change;
+    this.createdOn = createdOn;
+  }
+
+  /** Get the metadata of an event which is about to be stored, null if it has none. */
+  public static EventMetadata of(Event event) {
+    if (!(event instanceof RefEvent)) {
+      return null;
+    }
+    try {
+      RefEvent refEvent = (RefEvent) event;
+      Project.NameKey project = refEvent.getProjectNameKey();
+      EventMetadata metadata =
+          new EventMetadata(
+              event.getType(),
+              project == null ? null : project.get(),
+              refEvent.getRefName(),
+              event instanceof ChangeEvent ? getNumber((ChangeEvent) event) : 0,
+              event.eventCreatedOn);
+      return metadata.isEncodable() ? metadata : null;
+    } catch (RuntimeException e) {
+      return null; // sessions parse the event instead
+    }
+  }
+
+  protected static int getNumber(ChangeEvent event) {
+    try {
+      ChangeAttribute change = event.change == null ? null : event.change.get();
+      return change == null ? 0 : change.number;
+    } catch (RuntimeException e) {
+      return 0; // the number is only informational
+    }
+  }
+
+  /** Decode metadata, returns null if it is not valid. */
+  public static EventMetadata decode(String line) {
+    if (line == null || !line.endsWith("\n")) {
+      return null; // incomplete
+    }
+    String[] fields = line.substring(0, line.length() - 1).split("" + SEPARATOR, -1);
+    if (fields.length != FIELDS) {
+      return null;
+    }
+    try {
+      return new EventMetadata(
+          emptyToNull(fields[0]),
+          emptyToNull(fields[1]),
+          emptyToNull(fields[2]),
+          fields[3].isEmpty() ? 0 : Integer.parseInt(fields[3]),
+          fields[4].isEmpty() ? 0 : Long.parseLong(fields[4]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Encode the metadata as a line, terminated by a newline. */
+  public String encode() {
+    StringBuilder b = new StringBuilder();
+    b.append(nullToEmpty(type)).append(SEPARATOR);
+    b.append(nullToEmpty(project)).append(SEPARATOR);
+    b.append(nullToEmpty(ref)).append(SEPARATOR);
+    b.append(change).append(SEPARATOR);
+    b.append(createdOn).append('\n');
+    return b.toString();
+  }
+
+  /** Get the branch, like BranchHelper.getBranch() of the event, null if it has none. */
+  public BranchNameKey getBranch() {
+    if (project == null || ref == null) {
+      return null;
+    }
+    return BranchNameKey.create(Project.nameKey(project), ref);
+  }
+
+  protected boolean isEncodable() {
+    return isEncodable(type) && isEncodable(project) && isEncodable(ref);
+  }
+
+  protected static boolean isEncodable(String field) {
+    return field == null || (field.indexOf(SEPARATOR) < 0 && field.indexOf('\n') < 0);
+  }
+}
@@ -15,19 +15,132 @@
 package com.googlesource.gerrit.plugins.events;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public interface EventStore {
   UUID getUuid() throws IOException;
 
   long getHead() throws IOException;
 
+  /**
+   * Get the head, which may be stale by up to maxAge, so that callers polling the head often can
+   * avoid reading it from storage every time. Only callers which are told about new events after
+   * the head has been read without a maxAge (as the stream listeners are) may use this without
+   * missing events.
+   */
+  default long getHead(long maxAge, TimeUnit unit) throws IOException {
+    return getHead();
+  }
+
   long getTail() throws IOException;
 
+  /**
+   * Whether the head might have changed from head, which the caller got from getHead(). Stores may
+   * answer this more cheaply than getHead(), which helps pollers, but may return true when the head
+   * has not changed.
+   */
+  default boolean hasHeadChanged(long head) throws IOException {
+    return getHead() != head;
+  }
+
   void add(String event) throws IOException;
 
+  /** Add the events in order, implementations may store them more efficiently than one by one. */
+  default void addAll(List<String> events) throws IOException {
+    for (String event : events) {
+      add(event);
+    }
+  }
+
+  /**
+   * Add an event with its metadata (which may be null), stores which keep metadata store it
+   * alongside the event for getMetadata().
+   */
+  default void add(String event, EventMetadata metadata) throws IOException {
+    add(event);
+  }
+
+  /** Add the events in order with their metadata, metadata.get(i) is that of events.get(i). */
+  default void addAll(List<String> events, List<EventMetadata> metadata) throws IOException {
+    addAll(events);
+  }
+
   /** returns null if event does not exist */
   String get(long n) throws IOException;
 
+  /**
+   * Get the events from through to (inclusive), but no further than the head. The event numbered n
+   * is at index n - from, and is null if it does not exist. Implementations validate the range
+   * once and may read the events more efficiently than one by one, so callers should prefer this
+   * over get(n) to read consecutive events, in batches of reasonable size.
+   */
+  default List<String> get(long from, long to) throws IOException {
+    long head = getHead();
+    List<String> events = new ArrayList<>();
+    for (long n = from; n <= to && n <= head; n++) {
+      events.add(get(n));
+    }
+    return events;
+  }
+
+  /**
+   * Get an event as a UTF_8 encoded line (terminated by a newline), so that it can be written out
+   * without decoding it. Stores which keep events encoded return them without copying, so callers
+   * must NOT modify the returned arrays. Returns null if the event does not exist.
+   */
+  default byte[] getBytes(long n) throws IOException {
+    String event = get(n);
+    return event == null ? null : encode(event);
+  }
+
+  /** Get the events from through to as UTF_8 encoded lines, like get(from, to). */
+  default List<byte[]> getBytes(long from, long to) throws IOException {
+    List<byte[]> events = new ArrayList<>();
+    for (String event : get(from, to)) {
+      events.add(event == null ? null : encode(event));
+    }
+    return events;
+  }
+
+  /**
+   * Get the metadata of the events from through to, like get(from, to), so that callers can
+   * decide whether they need the events without reading or parsing them. The metadata of an event
+   * is null when the store does not have it (stores may not keep it, or not have stored it yet),
+   * callers must then read the event instead.
+   */
+  default List<EventMetadata> getMetadata(long from, long to) throws IOException {
+    List<EventMetadata> metadata = new ArrayList<>();
+    for (long n = from, head = getHead(); n <= to && n <= head; n++) {
+      metadata.add(null);
+    }
+    return metadata;
+  }
+
   void trim(long trim) throws IOException;
+
+  /**
+   * Claim a slot of a periodic task, such as trimming, so that only one of the nodes sharing the
+   * store runs it per slot. Returns whether this caller won the slot.
+   */
+  default boolean claim(String task, long slot) throws IOException {
+    return true;
+  }
+
+  /** Encode an event as a UTF_8 line. */
+  static byte[] encode(String event) {
+    return (event + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Decode a UTF_8 line back to an event. */
+  static String decode(byte[] line) {
+    int length = line.length;
+    if (length > 0 && line[length - 1] == '\n') {
+      length--;
+    }
+    return new String(line, 0, length, StandardCharsets.UTF_8);
+  }
 }
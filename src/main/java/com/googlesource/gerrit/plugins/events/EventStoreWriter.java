@@ -0,0 +1,227 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write events to an EventStore from a dedicated task.
+ *
+ * <p>Events are queued in a bounded in memory queue, and submitters only block when the queue is
+ * full, so queued events are lost if the server dies, and a batch which cannot be written is lost
+ * as a whole. The writer task (run on a Gerrit work queue, so it shows in show-queue) drains the
+ * queue and hands the events to the store in batches of up to
+ * batchSize events using EventStore.addAll(), lingering up to flushLatency for a batch to fill.
+ * The onStored callback is run after each batch so that stream listeners can be notified.
+ */
+public class EventStoreWriter implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(EventStoreWriter.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final long DEFAULT_FLUSH_LATENCY = 0;
+
+  protected static final long POLL_INTERVAL = 100;
+
+  protected static class Queued {
+    protected final String event;
+    protected final EventMetadata metadata; // null if none
+
+    protected Queued(String event, EventMetadata metadata) {
+      this.event = event;
+      this.metadata = metadata;
+    }
+  }
+
+  protected final EventStore store;
+  protected final BlockingQueue<Queued> queue;
+  protected final int batchSize;
+  protected final long flushLatency;
+  protected final Runnable onStored;
+
+  protected final Histogram0 batchSizes;
+  protected final Timer0 writeLatency;
+
+  protected Future<?> task;
+  protected volatile boolean running;
+
+  public EventStoreWriter(
+      EventStore store,
+      int queueSize,
+      int batchSize,
+      long flushLatency,
+      Runnable onStored,
+      MetricMaker metricMaker) {
+    this.store = store;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.batchSize = batchSize < 1 ? 1 : batchSize;
+    this.flushLatency = flushLatency < 0 ? 0 : flushLatency;
+    this.onStored = onStored;
+
+    metricMaker.newCallbackMetric(
+        "writer/queue_depth",
+        Integer.class,
+        new Description("Events waiting to be written to the event store").setGauge(),
+        queue::size);
+    metricMaker.newConstantMetric(
+        "writer/queue_size",
+        queueSize,
+        new Description("Maximum events waiting to be written to the event store"));
+    metricMaker.newConstantMetric(
+        "writer/flush_latency",
+        this.flushLatency,
+        new Description("Maximum time to wait for a batch to fill")
+            .setUnit(Description.Units.MILLISECONDS));
+    batchSizes =
+        metricMaker.newHistogram(
+            "writer/batch_size",
+            new Description("Events written to the event store per batch")
+                .setCumulative()
+                .setUnit("events"));
+    writeLatency =
+        metricMaker.newTimer(
+            "writer/latency",
+            new Description("Time to write a batch of events to the event store")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+  }
+
+  /** Start the writer task, it occupies a thread of the executor until stopped. */
+  public synchronized void start(ExecutorService executor) {
+    if (task == null) {
+      running = true;
+      task = executor.submit(this);
+    }
+  }
+
+  /** Stop the writer task after writing any queued events. */
+  public void stop() {
+    Future<?> t;
+    synchronized (this) {
+      running = false;
+      t = task;
+      task = null;
+    }
+    if (t != null) {
+      // Do not interrupt, it could abort a write to the store in progress.
+      try {
+        t.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.error("Events Store Writer failed", e);
+      }
+    }
+    flush();
+  }
+
+  /** Queue an event to be written, block while the queue is full. */
+  public void add(String event) throws InterruptedException {
+    add(event, null);
+  }
+
+  /** Queue an event to be written with its metadata, block while the queue is full. */
+  public void add(String event, EventMetadata metadata) throws InterruptedException {
+    queue.put(new Queued(event, metadata));
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      List<Queued> batch = new ArrayList<>(batchSize);
+      try {
+        fill(batch);
+      } catch (InterruptedException e) {
+        running = false;
+      }
+      if (!batch.isEmpty()) {
+        write(batch);
+      }
+    }
+  }
+
+  /** Fill a batch, waiting up to flushLatency for it to fill once it has its first event. */
+  protected void fill(List<Queued> batch) throws InterruptedException {
+    Queued first = queue.poll(POLL_INTERVAL, MILLISECONDS);
+    if (first == null) {
+      return; // give running a chance to be checked
+    }
+    batch.add(first);
+    long end = System.currentTimeMillis() + flushLatency;
+    while (batch.size() < batchSize) {
+      queue.drainTo(batch, batchSize - batch.size());
+      long remaining = end - System.currentTimeMillis();
+      if (batch.size() >= batchSize || remaining <= 0) {
+        return;
+      }
+      Queued event = queue.poll(remaining, MILLISECONDS);
+      if (event == null) {
+        return;
+      }
+      batch.add(event);
+    }
+  }
+
+  /** Write all queued events from the calling thread. */
+  protected void flush() {
+    List<Queued> batch = new ArrayList<>(batchSize);
+    while (queue.drainTo(batch, batchSize) > 0) {
+      write(batch);
+      batch = new ArrayList<>(batchSize);
+    }
+  }
+
+  protected void write(List<Queued> batch) {
+    batchSizes.record(batch.size());
+    long start = System.nanoTime();
+    List<String> events = new ArrayList<>(batch.size());
+    List<EventMetadata> metadata = new ArrayList<>(batch.size());
+    for (Queued queued : batch) {
+      events.add(queued.event);
+      metadata.add(queued.metadata);
+    }
+    try {
+      store.addAll(events, metadata);
+    } catch (IOException e) {
+      log.error("Cannot add " + batch.size() + " events to event store, they are lost", e);
+    }
+    writeLatency.record(System.nanoTime() - start, NANOSECONDS);
+    try {
+      onStored.run();
+    } catch (RuntimeException e) {
+      log.error("Cannot notify listeners of stored events", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Events Store Writer";
+  }
+}
@@ -14,14 +14,20 @@
 
 package com.googlesource.gerrit.plugins.events;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Strings;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritInstanceId;
 import com.google.gerrit.server.config.GerritServerConfigProvider;
 import com.google.gerrit.server.config.PluginConfig;
@@ -33,6 +39,7 @@ import com.google.gerrit.server.events.EventListener;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.events.RefEvent;
 import com.google.gerrit.server.events.UserScopedEventListener;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -47,12 +54,13 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Singleton
-public class FileSystemEventBroker extends EventBroker {
+public class FileSystemEventBroker extends EventBroker implements LifecycleListener {
   private static final Logger log = LoggerFactory.getLogger(FileSystemEventBroker.class);
 
   protected static final Predicate<Event> IS_NOTEDB_METAREF =
@@ -63,15 +71,26 @@ public class FileSystemEventBroker extends EventBroker {
         return false;
       };
 
+  protected static final int READ_BATCH = 100;
+
   protected static final String KEY_FILTER = "filter";
   protected static final String FILTER_TYPE_DROP = "DROP";
   protected static final String FILTER_ELEMENT_CLASSNAME = "classname";
   protected static final String FILTER_ELEMENT_EVENT_REFUPDATED = "RefUpdatedEvent";
   protected static final String FILTER_TEST_IS_NOTEDB_METAREF = "isNoteDbMetaRef";
 
+  protected static final String KEY_WRITER_QUEUE_SIZE = "writerQueueSize";
+  protected static final String KEY_WRITER_BATCH_SIZE = "writerBatchSize";
+  protected static final String KEY_WRITER_FLUSH_LATENCY = "writerFlushLatency";
+  protected static final int DEFAULT_WRITER_QUEUE_SIZE = 0; // synchronous, no events can be lost
+  protected static final String WRITER_QUEUE = "EventStoreWriter";
+
   protected final EventStore store;
   protected final Gson gson;
   protected final DynamicSet<StreamEventListener> streamEventListeners;
+  protected final WorkQueue workQueue;
+  protected final EventStoreWriter writer;
+  protected ScheduledExecutorService writerExecutor;
 
   protected long lastSent;
   protected Predicate<Event> drop = e -> false;
@@ -89,7 +108,9 @@ public class FileSystemEventBroker extends EventBroker {
       @EventGson Gson gson,
       DynamicSet<StreamEventListener> streamEventListeners,
       GerritServerConfigProvider gerritServerConfigProvider,
-      @PluginName String pluginName)
+      WorkQueue workQueue,
+      @PluginName String pluginName,
+      MetricMaker metricMaker)
       throws IOException {
     super(
         listeners,
@@ -101,8 +122,31 @@ public class FileSystemEventBroker extends EventBroker {
     this.store = store;
     this.gson = gson;
     this.streamEventListeners = streamEventListeners;
+    this.workQueue = workQueue;
     lastSent = store.getHead();
-    readAndParseCfg(pluginName, gerritServerConfigProvider);
+    PluginConfig cfg =
+        PluginConfig.createFromGerritConfig(pluginName, gerritServerConfigProvider.loadConfig());
+    readAndParseCfg(cfg);
+    writer = createWriter(cfg, metricMaker);
+  }
+
+  @Override
+  public void start() {
+    if (writer != null) {
+      writerExecutor = workQueue.createQueue(1, WRITER_QUEUE, false);
+      writer.start(writerExecutor);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (writer != null) {
+      writer.stop();
+    }
+    if (writerExecutor != null) {
+      writerExecutor.shutdown();
+      writerExecutor = null;
+    }
   }
 
   @Override
@@ -140,11 +184,23 @@ public class FileSystemEventBroker extends EventBroker {
 
   protected Drop storeEvent(Event event) {
     if (!isDropEvent(event)) {
-      try {
-        store.add(gson.toJson(event));
-        return Drop.FALSE;
-      } catch (IOException ex) {
-        log.error("Cannot add event to event store", ex);
+      String json = gson.toJson(event);
+      EventMetadata metadata = EventMetadata.of(event); // after toJson, which loads lazy fields
+      if (writer != null) {
+        try {
+          writer.add(json, metadata);
+          return Drop.QUEUED;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          log.error("Interrupted while queuing event for the event store", e);
+        }
+      } else {
+        try {
+          store.add(json, metadata);
+          return Drop.FALSE;
+        } catch (IOException ex) {
+          log.error("Cannot add event to event store", ex);
+        }
       }
     }
     return Drop.TRUE;
@@ -161,16 +217,38 @@ public class FileSystemEventBroker extends EventBroker {
     fireEventForStreamListeners(Drop.FALSE);
   }
 
+  /**
+   * Fire the stream listeners if the store has changed, for pollers. Cheaper than
+   * fireEventForStreamListeners() when the store can tell that its head has not changed. Returns
+   * whether events were found which had not been fired yet (from other nodes).
+   */
+  public synchronized boolean pollForStreamListeners() throws PermissionBackendException {
+    try {
+      if (!store.hasHeadChanged(lastSent)) {
+        return false;
+      }
+    } catch (IOException e) {
+      // Fire anyway, it will read the head.
+    }
+    long before = lastSent;
+    fireEventForStreamListeners();
+    return lastSent > before;
+  }
+
   protected synchronized void fireEventForStreamListeners(Drop drop)
       throws PermissionBackendException {
-    if (!Drop.TRUE.equals(drop)) {
+    if (Drop.FALSE.equals(drop)) {
       try {
         long current = store.getHead();
         while (lastSent < current) {
-          long next = lastSent + 1;
-          fireEventForUserScopedEventListener(
-              Type.STREAM, gson.fromJson(store.get(next), Event.class));
-          lastSent = next;
+          List<String> events = store.get(lastSent + 1, Math.min(current, lastSent + READ_BATCH));
+          if (events.isEmpty()) {
+            break;
+          }
+          for (String event : events) {
+            fireEventForUserScopedEventListener(Type.STREAM, gson.fromJson(event, Event.class));
+            lastSent++;
+          }
         }
       } catch (IOException e) {
         // Next Event would re-try the events.
@@ -242,7 +320,9 @@ public class FileSystemEventBroker extends EventBroker {
 
   protected enum Drop {
     TRUE,
-    FALSE
+    FALSE,
+    /** Not stored yet, the writer will fire the stream listeners once it is stored. */
+    QUEUED
   }
 
   protected List<PluginSetEntryContext<UserScopedEventListener>> getListeners(Type type) {
@@ -259,9 +339,30 @@ public class FileSystemEventBroker extends EventBroker {
     return l.getClass().getName().startsWith("com.google.gerrit.sshd.commands.StreamEvents");
   }
 
-  private void readAndParseCfg(
-      String pluginName, GerritServerConfigProvider configProvider) {
-    PluginConfig cfg = PluginConfig.createFromGerritConfig(pluginName, configProvider.loadConfig());
+  protected EventStoreWriter createWriter(PluginConfig cfg, MetricMaker metricMaker) {
+    int queueSize = cfg.getInt(KEY_WRITER_QUEUE_SIZE, DEFAULT_WRITER_QUEUE_SIZE);
+    if (queueSize < 1) {
+      return null; // store events synchronously
+    }
+    return new EventStoreWriter(
+        store,
+        queueSize,
+        cfg.getInt(KEY_WRITER_BATCH_SIZE, EventStoreWriter.DEFAULT_BATCH_SIZE),
+        ConfigUtil.getTimeUnit(
+            Strings.nullToEmpty(cfg.getString(KEY_WRITER_FLUSH_LATENCY)),
+            EventStoreWriter.DEFAULT_FLUSH_LATENCY,
+            MILLISECONDS),
+        () -> {
+          try {
+            fireEventForStreamListeners();
+          } catch (PermissionBackendException e) {
+            log.error("Permission Exception while dispatching the event. Will be tried again.", e);
+          }
+        },
+        metricMaker);
+  }
+
+  private void readAndParseCfg(PluginConfig cfg) {
     for (String filter : cfg.getStringList(KEY_FILTER)) {
       String pieces[] = filter.split(" ");
       if (pieces.length == 3) {
@@ -22,16 +22,35 @@ import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.events.EventDispatcher;
+import com.google.inject.Inject;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.events.fsstore.FsListener.FsLifecycleListener;
 import com.googlesource.gerrit.plugins.events.fsstore.FsStore;
+import com.googlesource.gerrit.plugins.events.fsstore.LeasedFsStore;
+import com.googlesource.gerrit.plugins.events.fsstore.LocalFsStore;
+import com.googlesource.gerrit.plugins.events.segmentstore.SegmentStore;
 
 public class Module extends LifecycleModule {
   private static final int DEFAULT_POLLING_INTERVAL = 0;
 
+  public static final String STORE_FS = "fs";
+  public static final String STORE_LOCAL = "local";
+  public static final String STORE_SEGMENT = "segment";
+
+  protected final String store;
+  protected final boolean leased;
+
+  @Inject
+  Module(PluginConfigFactory cfg, @PluginName String pluginName) {
+    PluginConfig pluginCfg = cfg.getFromGerritConfig(pluginName);
+    store = pluginCfg.getString("store", STORE_FS);
+    leased = new FsStore.Config(pluginCfg).leaseSize > 1;
+  }
+
   @Provides
   @Singleton
   @PollingInterval
@@ -51,8 +70,20 @@ public class Module extends LifecycleModule {
   @Override
   protected void configure() {
     DynamicSet.setOf(binder(), StreamEventListener.class);
-    bind(EventStore.class).to(FsStore.class);
+    DynamicSet.bind(binder(), StreamEventListener.class).to(StreamDispatcher.class);
+    if (STORE_SEGMENT.equals(store)) {
+      bind(EventStore.class).to(SegmentStore.class);
+    } else if (STORE_LOCAL.equals(store)) {
+      bind(EventStore.class).to(LocalFsStore.class);
+    } else if (leased) {
+      bind(EventStore.class).to(LeasedFsStore.class);
+    } else {
+      bind(EventStore.class).to(FsStore.class);
+    }
+    install(FsStore.module());
     DynamicItem.bind(binder(), EventDispatcher.class).to(FileSystemEventBroker.class);
+    listener().to(FileSystemEventBroker.class);
     listener().to(FsLifecycleListener.class);
+    listener().to(RetentionService.class);
   }
 }
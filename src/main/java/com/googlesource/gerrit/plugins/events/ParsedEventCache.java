@@ -0,0 +1,181 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Share parsed events between stream sessions, so that each event is parsed once instead of once
+ * per session.
+ *
+ * <p>Sessions register while they are streaming. A parsed event is kept until every session which
+ * was registered when it was parsed has fetched it, or until it becomes one of the oldest of more
+ * than maxSize cached events (sessions replaying old events would otherwise fill the cache with
+ * events nobody else will ask for).
+ */
+@Singleton
+public class ParsedEventCache {
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  protected static final String KEY_MAX_SIZE = "parsedEventCacheSize";
+
+  /** A parsed event, shared between sessions, so it must NOT be modified. */
+  public static class ParsedEvent {
+    protected static final Gson gson = new Gson();
+
+    public final byte[] raw; // as stored, a UTF_8 line
+    public final JsonElement json;
+    public final String type;
+    public final BranchNameKey branch;
+    public final Project.NameKey project;
+
+    public ParsedEvent(byte[] raw) {
+      this.raw = raw;
+      json = JsonParser.parseString(EventStore.decode(raw));
+      type = getType(json);
+      branch = BranchHelper.getBranch(json);
+      project = branch == null ? null : branch.project();
+    }
+
+    /** Render the event with an id, as a UTF_8 line. */
+    public byte[] toBytesWithId(String id) {
+      JsonObject el = json.getAsJsonObject().deepCopy(); // the event is shared
+      el.addProperty("id", id);
+      return EventStore.encode(gson.toJson(el));
+    }
+
+    protected static String getType(JsonElement el) {
+      if (el.isJsonObject()) {
+        JsonObject obj = el.getAsJsonObject();
+        if (obj.has("type")) {
+          return obj.get("type").getAsString();
+        }
+      }
+      return null;
+    }
+  }
+
+  protected static class Entry {
+    protected final ParsedEvent event;
+    protected int unfetched; // by the sessions registered when it was parsed
+
+    protected Entry(ParsedEvent event, int unfetched) {
+      this.event = event;
+      this.unfetched = unfetched;
+    }
+  }
+
+  protected final int maxSize;
+  protected final Counter0 parseCount;
+  protected final Counter0 hitCount;
+
+  protected final Map<Long, Entry> entries = new LinkedHashMap<>(); // sync on this
+  protected int sessions; // sync on this
+
+  public long parses;
+  public long hits;
+
+  @Inject
+  public ParsedEventCache(
+      PluginConfigFactory cfg, @PluginName String pluginName, MetricMaker metricMaker) {
+    this(cfg.getFromGerritConfig(pluginName).getInt(KEY_MAX_SIZE, DEFAULT_MAX_SIZE), metricMaker);
+  }
+
+  public ParsedEventCache(int maxSize, MetricMaker metricMaker) {
+    this.maxSize = maxSize < 0 ? 0 : maxSize;
+    parseCount =
+        metricMaker.newCounter(
+            "stream/event_parses",
+            new Description("Events parsed for stream sessions").setRate().setUnit("events"));
+    hitCount =
+        metricMaker.newCounter(
+            "stream/parsed_event_cache_hits",
+            new Description("Parsed events shared between stream sessions")
+                .setRate()
+                .setUnit("events"));
+    metricMaker.newCallbackMetric(
+        "stream/parsed_event_cache_size",
+        Integer.class,
+        new Description("Parsed events waiting to be fetched by stream sessions").setGauge(),
+        this::size);
+    metricMaker.newCallbackMetric(
+        "stream/sessions",
+        Integer.class,
+        new Description("Stream sessions sharing parsed events").setGauge(),
+        this::getSessions);
+  }
+
+  public synchronized void register() {
+    sessions++;
+  }
+
+  public synchronized void unregister() {
+    if (--sessions <= 0) {
+      sessions = 0;
+      entries.clear();
+    }
+  }
+
+  /** Get the parsed form of an event, parsing it only if no other session has already. */
+  public ParsedEvent get(long number, byte[] raw) {
+    synchronized (this) {
+      Entry entry = entries.get(number);
+      if (entry != null && Arrays.equals(entry.event.raw, raw)) {
+        if (--entry.unfetched <= 0) {
+          entries.remove(number);
+        }
+        hits++;
+        hitCount.increment();
+        return entry.event;
+      }
+    }
+
+    ParsedEvent event = new ParsedEvent(raw);
+    synchronized (this) {
+      parses++;
+      parseCount.increment();
+      if (sessions > 1 && maxSize > 0) {
+        entries.put(number, new Entry(event, sessions - 1));
+        while (entries.size() > maxSize) {
+          entries.remove(entries.keySet().iterator().next());
+        }
+      }
+    }
+    return event;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int getSessions() {
+    return sessions;
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trim the store on a schedule, so that it keeps at most maxEvents events, no events older than
+ * maxAge, and about maxBytes of events.
+ *
+ * <p>Each run trims at most maxTrim events, so that runs stay short, and trimming a large backlog
+ * is spread over several runs. Runs are claimed through the store for their time slot, so that
+ * only one of the nodes sharing a store trims it per interval.
+ *
+ * <p>The age of the events is found by a binary search on their eventCreatedOn, and their size is
+ * estimated from a sample of the events, so that runs only read a few events.
+ */
+@Singleton
+public class RetentionService implements LifecycleListener, Runnable {
+  private static final Logger log = LoggerFactory.getLogger(RetentionService.class);
+
+  public static final long DEFAULT_MAX_TRIM = 10000;
+
+  protected static final String TASK = "retention";
+  protected static final int SIZE_SAMPLES = 100;
+  protected static final int MISSING_PROBES = 10; // events to look at past missing events
+
+  protected final EventStore store;
+  protected final WorkQueue queue;
+  protected final long interval;
+  protected final long maxEvents;
+  protected final long maxAge;
+  protected final long maxBytes;
+  protected final long maxTrim;
+
+  protected ScheduledFuture<?> future;
+
+  @Inject
+  public RetentionService(
+      EventStore store, WorkQueue queue, PluginConfigFactory cfg, @PluginName String pluginName) {
+    this(store, queue, cfg.getFromGerritConfig(pluginName));
+  }
+
+  protected RetentionService(EventStore store, WorkQueue queue, PluginConfig cfg) {
+    this(
+        store,
+        queue,
+        getTime(cfg, "retentionInterval"),
+        cfg.getLong("retentionMaxEvents", 0),
+        getTime(cfg, "retentionMaxAge"),
+        cfg.getLong("retentionMaxBytes", 0),
+        cfg.getLong("retentionMaxTrim", DEFAULT_MAX_TRIM));
+  }
+
+  public RetentionService(
+      EventStore store,
+      WorkQueue queue,
+      long interval,
+      long maxEvents,
+      long maxAge,
+      long maxBytes,
+      long maxTrim) {
+    this.store = store;
+    this.queue = queue;
+    this.interval = interval;
+    this.maxEvents = maxEvents;
+    this.maxAge = maxAge;
+    this.maxBytes = maxBytes;
+    this.maxTrim = maxTrim < 1 ? 1 : maxTrim;
+  }
+
+  protected static long getTime(PluginConfig cfg, String key) {
+    return ConfigUtil.getTimeUnit(Strings.nullToEmpty(cfg.getString(key)), 0, MILLISECONDS);
+  }
+
+  @Override
+  public void start() {
+    if (interval > 0 && (maxEvents > 0 || maxAge > 0 || maxBytes > 0)) {
+      future = queue.getDefaultQueue().scheduleAtFixedRate(this, interval, interval, MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (future != null) {
+      future.cancel(true);
+      future = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (store.claim(TASK, System.currentTimeMillis() / interval)) {
+        trim();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("Cannot trim the event store", e);
+    }
+  }
+
+  /** Trim the store according to the policies, at most maxTrim events. */
+  public void trim() throws IOException {
+    long head = store.getHead();
+    long tail = store.getTail();
+    if (head == 0 || tail > head) {
+      return;
+    }
+    long trim = Math.min(getTrim(head, tail), tail - 1 + maxTrim);
+    if (trim >= tail) {
+      store.trim(trim);
+    }
+  }
+
+  /** Get the last event to trim to satisfy the policies, tail - 1 if there is none. */
+  protected long getTrim(long head, long tail) throws IOException {
+    long trim = tail - 1;
+    if (maxEvents > 0) {
+      trim = Math.max(trim, head - maxEvents);
+    }
+    if (maxBytes > 0) {
+      long size = getAverageSize(head, tail);
+      if (size > 0) {
+        trim = Math.max(trim, head - maxBytes / size);
+      }
+    }
+    if (maxAge > 0) {
+      trim = Math.max(trim, getLastCreatedBefore(System.currentTimeMillis() - maxAge, head, tail));
+    }
+    return trim;
+  }
+
+  /** Estimate the average size of the events from a sample, 0 if unknown. */
+  protected long getAverageSize(long head, long tail) throws IOException {
+    long step = Math.max(1, (head - tail + 1) / SIZE_SAMPLES);
+    long total = 0;
+    long samples = 0;
+    for (long n = tail; n <= head; n += step) {
+      byte[] event = store.getBytes(n);
+      if (event != null) {
+        total += event.length;
+        samples++;
+      }
+    }
+    return samples == 0 ? 0 : total / samples;
+  }
+
+  /** Find the last event created before cutoff (ms), tail - 1 if there is none. */
+  protected long getLastCreatedBefore(long cutoff, long head, long tail) throws IOException {
+    long last = tail - 1;
+    long low = tail;
+    long high = head;
+    while (low <= high) {
+      long mid = low + (high - low) / 2;
+      Long created = getCreatedOn(mid, head);
+      if (created != null && created < cutoff) {
+        last = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1; // unknown ages are kept
+      }
+    }
+    return last;
+  }
+
+  /** Get when an event (or the next existing one) was created in ms, null if unknown. */
+  protected Long getCreatedOn(long n, long head) throws IOException {
+    for (long m = n; m <= head && m < n + MISSING_PROBES; m++) {
+      String event = store.get(m);
+      if (event != null) {
+        try {
+          JsonElement created =
+              JsonParser.parseString(event).getAsJsonObject().get("eventCreatedOn");
+          return created == null ? null : SECONDS.toMillis(created.getAsLong());
+        } catch (RuntimeException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,390 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import org.apache.sshd.common.io.IoOutputStream;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+
+/**
+ * A bounded buffer of the output of a stream session, written to the client asynchronously, so
+ * that the threads streaming the events to the sessions never block on a client, and no thread is
+ * needed per session.
+ *
+ * <p>Events are copied into a reusable chunk, which is written once it is full, or once the events
+ * have lingered a little while, so that bursts of events take few writes. Events arriving while a
+ * chunk is being written are written in the next chunk as soon as it completes.
+ *
+ * <p>Once the buffer is full it rejects events until the client has read half of it, and then
+ * wakes the session up. What the session does meanwhile is its slow session policy. The buffer
+ * always accepts an event when it is empty, so that events larger than the buffer can still be
+ * sent.
+ */
+public class SessionBuffer {
+  /** What a session does when its client falls so far behind that its buffer is full. */
+  public enum Policy {
+    /** Disconnect the client, telling it which event to resume after. */
+    DISCONNECT,
+    /** Drop the buffered events, and replay them from the store once the client catches up. */
+    REPLAY,
+    /** Keep the buffered events, and stop streaming until the client catches up. */
+    PAUSE
+  }
+
+  public static final long DEFAULT_SIZE = 1024 * 1024;
+  public static final Policy DEFAULT_POLICY = Policy.REPLAY;
+
+  public static final long DEFAULT_LINGER = 5; // ms
+
+  protected static final int CHUNK_SIZE = 32 * 1024; // the usual maximum SSH packet size
+
+  /** Create the buffers of the sessions. */
+  @Singleton
+  public static class Factory {
+    protected static final String KEY_SIZE = "sessionBufferSize";
+    protected static final String KEY_POLICY = "slowSessionPolicy";
+    protected static final String KEY_LINGER = "sessionLinger";
+
+    public final long size;
+    public final Policy policy;
+    public final long linger;
+
+    protected final Set<SessionBuffer> buffers = ConcurrentHashMap.newKeySet();
+    protected final Counter0 slowSessionCount;
+    protected final Counter0 writeCount;
+
+    @Inject
+    public Factory(
+        PluginConfigFactory cfg, @PluginName String pluginName, MetricMaker metricMaker) {
+      this(cfg.getFromGerritConfig(pluginName), metricMaker);
+    }
+
+    protected Factory(PluginConfig cfg, MetricMaker metricMaker) {
+      this(
+          cfg.getLong(KEY_SIZE, DEFAULT_SIZE),
+          cfg.getEnum(KEY_POLICY, DEFAULT_POLICY),
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString(KEY_LINGER)), DEFAULT_LINGER, MILLISECONDS),
+          metricMaker);
+    }
+
+    public Factory(long size, Policy policy, long linger, MetricMaker metricMaker) {
+      this.size = size < 1 ? 1 : size;
+      this.policy = policy;
+      this.linger = linger < 0 ? 0 : linger;
+      slowSessionCount =
+          metricMaker.newCounter(
+              "stream/slow_sessions",
+              new Description("Stream sessions whose buffer filled up, the policy was applied")
+                  .setRate());
+      writeCount =
+          metricMaker.newCounter(
+              "stream/session_writes",
+              new Description("Chunks of events written to stream sessions")
+                  .setRate()
+                  .setUnit("writes"));
+      metricMaker.newCallbackMetric(
+          "stream/session_buffer_bytes",
+          Long.class,
+          new Description("Bytes buffered for all the stream sessions").setGauge().setUnit("bytes"),
+          this::getBufferedBytes);
+      metricMaker.newCallbackMetric(
+          "stream/session_buffer_max_occupancy",
+          Integer.class,
+          new Description("Occupancy of the fullest stream session buffer")
+              .setGauge()
+              .setUnit("percent"),
+          this::getMaxOccupancy);
+    }
+
+    /**
+     * Create the buffer of a session, written to out.
+     *
+     * @param scheduler runs the (short) lingered writes
+     * @param wake run whenever the buffer drains after being full, or fails
+     */
+    public SessionBuffer create(
+        IoOutputStream out, ScheduledExecutorService scheduler, Runnable wake) {
+      SessionBuffer buffer = new SessionBuffer(this, out, scheduler, wake);
+      buffers.add(buffer);
+      return buffer;
+    }
+
+    /** Count a slow session, before applying the policy to it. */
+    public void onSlowSession() {
+      slowSessionCount.increment();
+    }
+
+    public long getBufferedBytes() {
+      long bytes = 0;
+      for (SessionBuffer buffer : buffers) {
+        bytes += buffer.getBytes();
+      }
+      return bytes;
+    }
+
+    public int getMaxOccupancy() {
+      int max = 0;
+      for (SessionBuffer buffer : buffers) {
+        max = Math.max(max, buffer.getOccupancy());
+      }
+      return max;
+    }
+  }
+
+  protected static class Entry {
+    public final long number;
+    public final byte[] bytes;
+
+    protected Entry(long number, byte[] bytes) {
+      this.number = number;
+      this.bytes = bytes;
+    }
+  }
+
+  protected final Factory factory;
+  protected final IoOutputStream out;
+  protected final ScheduledExecutorService scheduler;
+  protected final Runnable wake;
+  protected final long capacity;
+
+  // sync on this
+  protected final Deque<Entry> entries = new ArrayDeque<>();
+  protected ByteArrayBuffer chunk = new ByteArrayBuffer(CHUNK_SIZE);
+  protected long writingFirst; // the first event in the chunk being written, 0 if none
+  protected int writingBytes;
+  protected Future<?> lingering;
+  protected long bytes;
+  protected boolean full;
+  protected boolean closed;
+
+  protected volatile boolean failed;
+
+  protected SessionBuffer(
+      Factory factory, IoOutputStream out, ScheduledExecutorService scheduler, Runnable wake) {
+    this.factory = factory;
+    this.out = out;
+    this.scheduler = scheduler;
+    this.wake = wake;
+    this.capacity = factory.size;
+  }
+
+  /**
+   * Buffer an event for the client.
+   *
+   * @return false if the buffer is full, the event was not buffered
+   */
+  public boolean offer(long number, byte[] msg) {
+    ByteArrayBuffer toWrite;
+    synchronized (this) {
+      if (closed || failed) {
+        return true; // nobody will read it anyway
+      }
+      if (full || (bytes > 0 && bytes + msg.length > capacity)) {
+        full = true;
+        return false;
+      }
+      entries.add(new Entry(number, msg));
+      bytes += msg.length;
+      toWrite = writingFirst == 0 ? lingerOrFill() : null;
+    }
+    write(toWrite);
+    return true;
+  }
+
+  /** Fill the chunk if it can be filled, or wait for more events for up to the linger time. */
+  protected ByteArrayBuffer lingerOrFill() {
+    if (bytes >= CHUNK_SIZE || factory.linger == 0) {
+      return fill();
+    }
+    if (lingering == null) {
+      try {
+        lingering = scheduler.schedule(this::lingered, factory.linger, MILLISECONDS);
+      } catch (RejectedExecutionException e) { // shutting down
+        return fill();
+      }
+    }
+    return null;
+  }
+
+  protected void lingered() {
+    ByteArrayBuffer toWrite;
+    synchronized (this) {
+      lingering = null;
+      toWrite = writingFirst == 0 ? fill() : null;
+    }
+    write(toWrite);
+  }
+
+  /** Move the buffered events into the chunk, return it unless there are none. */
+  protected ByteArrayBuffer fill() {
+    if (closed || entries.isEmpty()) {
+      return null;
+    }
+    if (lingering != null) {
+      lingering.cancel(false);
+      lingering = null;
+    }
+    if (chunk.capacity() > CHUNK_SIZE) {
+      chunk = new ByteArrayBuffer(CHUNK_SIZE); // after a large event
+    }
+    chunk.clear();
+    writingFirst = entries.peek().number;
+    for (Entry entry = entries.peek(); entry != null; entry = entries.peek()) {
+      if (chunk.available() > 0 && chunk.available() + entry.bytes.length > CHUNK_SIZE) {
+        break;
+      }
+      chunk.putRawBytes(entry.bytes, 0, entry.bytes.length);
+      entries.poll();
+    }
+    writingBytes = chunk.available();
+    return chunk;
+  }
+
+  protected void write(ByteArrayBuffer toWrite) {
+    if (toWrite != null) {
+      factory.writeCount.increment();
+      try {
+        out.writeBuffer(toWrite).addListener(this::written);
+      } catch (IOException | RuntimeException e) {
+        fail();
+      }
+    }
+  }
+
+  protected void written(IoWriteFuture future) {
+    if (!future.isWritten()) {
+      fail();
+      return;
+    }
+    ByteArrayBuffer toWrite;
+    boolean drained;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      bytes -= writingBytes;
+      writingFirst = 0;
+      writingBytes = 0;
+      drained = full && bytes <= capacity / 2;
+      if (drained) {
+        full = false;
+      }
+      toWrite = fill(); // what arrived while writing, without lingering
+    }
+    write(toWrite);
+    if (drained) {
+      wake.run();
+    }
+  }
+
+  protected void fail() {
+    synchronized (this) {
+      failed = true;
+      entries.clear();
+      writingFirst = 0;
+      writingBytes = 0;
+      bytes = 0;
+    }
+    wake.run();
+  }
+
+  /**
+   * Drop the events which are not being written yet. The buffer stays full until the chunk being
+   * written, if any, is written.
+   *
+   * @return the number of the first event dropped, 0 if none
+   */
+  public synchronized long clear() {
+    Entry first = entries.peek();
+    for (Entry entry : entries) {
+      bytes -= entry.bytes.length;
+    }
+    entries.clear();
+    if (writingFirst == 0) {
+      full = false;
+    }
+    return first == null ? 0 : first.number;
+  }
+
+  /**
+   * Get the event after which a client has received every event, sent is the last event the
+   * session handed to the buffer, or skipped.
+   */
+  public synchronized long getResumePoint(long sent) {
+    if (writingFirst != 0) {
+      return writingFirst - 1;
+    }
+    Entry first = entries.peek();
+    return first == null ? sent : first.number - 1;
+  }
+
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      entries.clear();
+      bytes = 0;
+      if (lingering != null) {
+        lingering.cancel(false);
+        lingering = null;
+      }
+    }
+    factory.buffers.remove(this);
+    out.close(true);
+  }
+
+  /** A full buffer rejects events until it has drained, then it wakes the session up. */
+  public synchronized boolean isBlocked() {
+    return full;
+  }
+
+  /** The client could not be written to, the session should exit. */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /** The percentage of the buffer in use. */
+  public int getOccupancy() {
+    return (int) Math.min(100, getBytes() * 100 / capacity);
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.events.ParsedEventCache.ParsedEvent;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read each new event once for all the stream sessions, and push it to their queues.
+ *
+ * <p>When told about new events, the dispatcher reads them and their metadata from the store, and
+ * offers them to the queue of every subscribed session, then wakes the sessions. Sessions only
+ * filter and write the events, using the metadata to filter them when the store has it, so that
+ * events are only parsed (once for all the sessions) when a session needs it. A session whose
+ * queue is full has its queue cleared, and the gap this leaves is replayed by the session from the
+ * store, as are the events from before it subscribed.
+ */
+@Singleton
+public class StreamDispatcher implements StreamEventListener {
+  private static final Logger log = LoggerFactory.getLogger(StreamDispatcher.class);
+
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  protected static final String KEY_QUEUE_SIZE = "sessionQueueSize";
+  protected static final int BATCH_SIZE = 100;
+
+  /** A new event, shared between sessions, so it must NOT be modified. */
+  public static class DispatchedEvent {
+    public final long number;
+    public final byte[] raw; // as stored, null if missing
+    public final EventMetadata metadata; // null if the store does not have it
+
+    protected final String id;
+    protected ParsedEvent event; // sync on this
+    protected boolean parsed; // sync on this
+    protected volatile byte[] withId;
+
+    public DispatchedEvent(long number, byte[] raw, EventMetadata metadata, String id) {
+      this.number = number;
+      this.raw = raw;
+      this.metadata = metadata;
+      this.id = id;
+    }
+
+    /** Get the parsed event, parsed once for all the sessions, null if missing or unparsable. */
+    public synchronized ParsedEvent getEvent() {
+      if (!parsed) {
+        event = parse(number, raw);
+        parsed = true;
+      }
+      return event;
+    }
+
+    /**
+     * Get the event with its id, rendered once for all the sessions which want ids, null if it
+     * cannot be rendered.
+     */
+    public byte[] getRawWithId() {
+      byte[] rendered = withId;
+      if (rendered == null) {
+        ParsedEvent event = getEvent();
+        try {
+          rendered = event == null ? null : event.toBytesWithId(id);
+        } catch (RuntimeException e) {
+          log.warn("Cannot add an id to event " + number + ", not streaming it", e);
+        }
+        withId = rendered;
+      }
+      return rendered;
+    }
+  }
+
+  /** The queue of a session. */
+  public class Subscription {
+    protected final Queue<DispatchedEvent> queue = new ArrayBlockingQueue<>(queueSize);
+    protected final Runnable wake;
+
+    protected Subscription(Runnable wake) {
+      this.wake = wake;
+    }
+
+    public DispatchedEvent peek() {
+      return queue.peek();
+    }
+
+    public DispatchedEvent poll() {
+      return queue.poll();
+    }
+
+    /** The last event dispatched, the session must replay up to it if its queue is empty. */
+    public long getLastDispatched() {
+      return last;
+    }
+
+    public void close() {
+      subscriptions.remove(this);
+      queue.clear();
+    }
+
+    protected void offer(DispatchedEvent event) {
+      if (!queue.offer(event)) {
+        queue.clear(); // the session replays the gap from the store
+        overflowCount.increment();
+        queue.offer(event);
+      }
+    }
+  }
+
+  protected final EventStore store;
+  protected final Executor executor;
+  protected final int queueSize;
+  protected final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  protected final AtomicBoolean pending = new AtomicBoolean();
+  protected final Counter0 dispatchCount;
+  protected final Counter0 overflowCount;
+
+  protected volatile long last = -1; // the last event dispatched, -1 until a session subscribes
+
+  @Inject
+  public StreamDispatcher(
+      EventStore store,
+      WorkQueue queue,
+      PluginConfigFactory cfg,
+      @PluginName String pluginName,
+      MetricMaker metricMaker) {
+    this(
+        store,
+        queue.getDefaultQueue(),
+        cfg.getFromGerritConfig(pluginName).getInt(KEY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE),
+        metricMaker);
+  }
+
+  public StreamDispatcher(
+      EventStore store, Executor executor, int queueSize, MetricMaker metricMaker) {
+    this.store = store;
+    this.executor = executor;
+    this.queueSize = queueSize < 1 ? 1 : queueSize;
+    dispatchCount =
+        metricMaker.newCounter(
+            "stream/dispatched_events",
+            new Description("Events read once for all the stream sessions")
+                .setRate()
+                .setUnit("events"));
+    overflowCount =
+        metricMaker.newCounter(
+            "stream/session_queue_overflows",
+            new Description("Session queues cleared because their session fell behind")
+                .setRate());
+  }
+
+  /** Subscribe a session, wake is run whenever events are queued for it. */
+  public synchronized Subscription subscribe(Runnable wake) throws IOException {
+    if (last < 0) {
+      last = store.getHead();
+    }
+    Subscription subscription = new Subscription(wake);
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  @Override
+  public void onStreamEventUpdate() {
+    if (pending.compareAndSet(false, true)) {
+      executor.execute(this::dispatch);
+    }
+  }
+
+  protected synchronized void dispatch() {
+    pending.set(false); // later updates dispatch again
+    try {
+      if (subscriptions.isEmpty()) {
+        last = -1; // no need to read events nobody waits for
+        return;
+      }
+      String uuid = store.getUuid().toString();
+      long head = store.getHead();
+      while (last < head) {
+        long from = last + 1;
+        long to = Math.min(head, last + BATCH_SIZE);
+        List<EventMetadata> metadata = store.getMetadata(from, to);
+        List<byte[]> events = store.getBytes(from, to);
+        if (events.isEmpty()) {
+          break;
+        }
+        for (int i = 0; i < events.size(); i++) {
+          long number = from + i;
+          DispatchedEvent event =
+              new DispatchedEvent(
+                  number,
+                  events.get(i),
+                  i < metadata.size() ? metadata.get(i) : null,
+                  uuid + ":" + number);
+          for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+          }
+          last = number;
+          dispatchCount.increment();
+        }
+        for (Subscription subscription : subscriptions) {
+          subscription.wake.run();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("Cannot dispatch events to the stream sessions", e);
+    }
+  }
+
+  protected static ParsedEvent parse(long number, byte[] raw) {
+    if (raw == null) {
+      return null;
+    }
+    try {
+      return new ParsedEvent(raw);
+    } catch (RuntimeException e) {
+      log.warn("Cannot parse event " + number + ", not streaming it", e);
+      return null;
+    }
+  }
+
+  public int getSubscriptions() {
+    return subscriptions.size();
+  }
+}
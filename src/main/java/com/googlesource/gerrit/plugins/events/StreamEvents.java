@@ -18,24 +18,30 @@ import com.google.gerrit.common.data.GlobalCapability;
 import com.google.gerrit.extensions.annotations.CapabilityScope;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.annotations.RequiresCapability;
-import com.google.gerrit.extensions.registration.DynamicSet;
-import com.google.gerrit.extensions.registration.RegistrationHandle;
 import com.google.gerrit.server.DynamicOptions;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
+import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.sshd.BaseCommand;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.StreamCommandExecutor;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.events.ParsedEventCache.ParsedEvent;
+import com.googlesource.gerrit.plugins.events.StreamDispatcher.DispatchedEvent;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelAsyncOutputStream;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.io.IoOutputStream;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.kohsuke.args4j.Option;
@@ -48,7 +54,8 @@ public final class StreamEvents extends BaseCommand {
   private static final Logger log = LoggerFactory.getLogger(StreamEvents.class);
 
   protected static final int BATCH_SIZE = 32; // yield thread after
-  protected static final Gson gson = new Gson();
+  protected static final long DISCONNECT_GRACE = 10; // s, to tell a slow client how to resume
+  protected static final String WINDOW_ADJUST = "SSH_MSG_CHANNEL_WINDOW_ADJUST"; // channel state
 
   @Option(
       name = "--resume-after",
@@ -91,20 +98,25 @@ public final class StreamEvents extends BaseCommand {
 
   @Inject protected EventStore events;
 
-  @Inject protected DynamicSet<StreamEventListener> subscriptionListeners;
+  @Inject protected StreamDispatcher dispatcher;
 
   @Inject protected BranchHelper perms;
 
+  @Inject protected ParsedEventCache parsedEvents;
+
+  @Inject protected SessionBuffer.Factory buffers;
+
   @Inject protected IdentifiedUser currentUser;
 
   @Inject @PluginName String pluginName;
 
+  protected IoOutputStream asyncErr; // only written to when disconnecting
   protected CancelableRunnable flusherRunnable;
-  protected RegistrationHandle subscription;
+  protected StreamDispatcher.Subscription subscription;
+  protected SessionBuffer buffer;
 
   protected final Object crossThreadlock = new Object();
   protected Future<?> flusherTask;
-  protected PrintWriter stdout;
 
   protected long sent;
   protected volatile boolean shuttingDown = false;
@@ -124,10 +136,16 @@ public final class StreamEvents extends BaseCommand {
         onExit(1);
         return;
       }
-      stdout = toPrintWriter(out);
 
       initSent();
       flusherRunnable = createFlusherRunnable();
+      ChannelAsyncOutputStream asyncOut =
+          new ChannelAsyncOutputStream(channel, SshConstants.SSH_MSG_CHANNEL_DATA);
+      ChannelAsyncOutputStream asyncErr =
+          new ChannelAsyncOutputStream(channel, SshConstants.SSH_MSG_CHANNEL_EXTENDED_DATA);
+      channel.addChannelListener(newChannelListener(asyncOut, asyncErr));
+      this.asyncErr = asyncErr;
+      buffer = buffers.create(asyncOut, threadPool, this::wake);
       subscribe();
       startFlush();
     }
@@ -148,6 +166,42 @@ public final class StreamEvents extends BaseCommand {
       public void cancel() {
         onExit(0);
       }
+
+      @Override
+      public String toString() {
+        return String.format(
+            "Stream events to %s (buffer %d%% of %d bytes)",
+            currentUser.getLoggableName(), buffer.getOccupancy(), buffer.getCapacity());
+      }
+    };
+  }
+
+  /**
+   * Create the listener of the streams writing asynchronously to the channel, registered once per
+   * session. Gerrit commands are not asynchronous commands, so the channel does not tell the
+   * streams when the client can take more data, the listener has to.
+   */
+  protected ChannelListener newChannelListener(ChannelAsyncOutputStream... streams) {
+    return new ChannelListener() {
+      @Override
+      public void channelStateChanged(Channel c, String hint) {
+        if (WINDOW_ADJUST.equals(hint)) {
+          for (ChannelAsyncOutputStream stream : streams) {
+            try {
+              stream.onWindowExpanded();
+            } catch (IOException e) {
+              stream.close(true);
+            }
+          }
+        }
+      }
+
+      @Override
+      public void channelClosed(Channel c, Throwable reason) {
+        for (ChannelAsyncOutputStream stream : streams) {
+          stream.close(true);
+        }
+      }
     };
   }
 
@@ -166,7 +220,9 @@ public final class StreamEvents extends BaseCommand {
 
   protected void startFlush() throws IOException {
     synchronized (crossThreadlock) {
-      if (!isFlushing() && !shuttingDown && !isUpToDate()) {
+      if (!isFlushing()
+          && !shuttingDown
+          && (buffer.isFailed() || (!buffer.isBlocked() && !isUpToDate()))) {
         flusherTask = threadPool.submit(flusherRunnable);
       }
     }
@@ -195,42 +251,77 @@ public final class StreamEvents extends BaseCommand {
     }
   }
 
-  protected void subscribe() {
-    subscription =
-        subscriptionListeners.add(
-            pluginName,
-            new StreamEventListener() {
-              @Override
-              public void onStreamEventUpdate() {
-                try {
-                  startFlush();
-                } catch (IOException e) {
-                  log.error("Error starting to flushing Stream Events", e);
-                }
-              }
-            });
+  protected void subscribe() throws IOException {
+    parsedEvents.register();
+    subscription = dispatcher.subscribe(this::wake);
+  }
+
+  protected void wake() {
+    try {
+      startFlush();
+    } catch (IOException e) {
+      log.error("Error starting to flushing Stream Events", e);
+    }
   }
 
   protected void unsubscribe() {
-    if (subscription != null) {
-      subscription.remove();
+    StreamDispatcher.Subscription s;
+    synchronized (crossThreadlock) {
+      s = subscription;
       subscription = null;
     }
+    if (s != null) {
+      s.close();
+      parsedEvents.unregister();
+    }
+    if (buffer != null) {
+      buffer.close();
+    }
   }
 
+  /**
+   * Send the events queued by the dispatcher, and replay the events missing before them (from
+   * before the session subscribed, or dropped when its queue or buffer overflowed) from the store.
+   * Events are only handed to the session buffer, so this never blocks on the client.
+   */
   protected void flushBatch() throws IOException {
+    StreamDispatcher.Subscription s = subscription;
+    if (s == null) {
+      return;
+    }
     String uuid = events.getUuid().toString();
-    int processed = 0;
-    while (!isUpToDate() && processed < BATCH_SIZE) {
-      long sending = sent + 1;
-      String event = events.get(sending);
-      if (Thread.interrupted() || stdout.checkError()) {
+    int flushed = 0;
+    while (flushed < BATCH_SIZE) {
+      if (Thread.interrupted() || buffer.isFailed()) {
         onExit(0);
         return;
       }
-      flush(uuid, sending, event);
-      sent = sending;
-      processed++;
+      if (shuttingDown) {
+        return;
+      }
+      if (buffer.isBlocked()) {
+        break; // woken up once the buffer has drained
+      }
+      DispatchedEvent next = s.peek();
+      if (next != null && next.number <= sent) {
+        s.poll(); // already replayed
+      } else if (next != null && next.number == sent + 1) {
+        s.poll(); // replayed from the store if rejected by the buffer
+        if (flush(uuid, next)) {
+          sent = next.number;
+          flushed++;
+        }
+      } else {
+        long replayTo = next != null ? next.number - 1 : s.getLastDispatched();
+        if (sent >= replayTo) {
+          break;
+        }
+        int replayed = replay(uuid, Math.min(replayTo, sent + BATCH_SIZE - flushed));
+        if (replayed == 0 && !buffer.isBlocked()) {
+          break;
+        }
+        flushed += replayed;
+      }
     }
     synchronized (crossThreadlock) {
       flusherTask = null;
@@ -238,36 +329,177 @@ public final class StreamEvents extends BaseCommand {
     startFlush();
   }
 
-  protected void flush(String uuid, long number, String json) {
-    if (json != null) {
-      JsonElement el = JsonParser.parseString(json);
-      boolean subscribed = true;
-      if (!subscribedEventTypes.isEmpty()) {
-        String eventType = null;
-        if (el.isJsonObject() && el.getAsJsonObject().has("type")) {
-          eventType = el.getAsJsonObject().get("type").getAsString();
-        }
-        subscribed = eventType != null && subscribedEventTypes.contains(eventType);
+  /**
+   * Replay events up to replayTo from the store, return how many were replayed. Events whose
+   * metadata the store has are only read if the session wants them, the others are read in one
+   * batch (from the first of them on) and filtered once parsed.
+   */
+  protected int replay(String uuid, long replayTo) throws IOException {
+    List<EventMetadata> metadata = events.getMetadata(sent + 1, replayTo);
+    List<byte[]> unfiltered = null; // the events from unfilteredFrom on, read on demand
+    long unfilteredFrom = 0;
+    int replayed = 0;
+    for (EventMetadata m : metadata) {
+      long sending = sent + 1;
+      if (Thread.currentThread().isInterrupted() || buffer.isFailed()) {
+        break; // handled by flushBatch()
       }
-      if (subscribed && perms.isVisibleTo(el, currentUser)) {
-        if (includeIds) {
-          el.getAsJsonObject().addProperty("id", uuid + ":" + number);
-          json = gson.toJson(el);
+      if (m != null) {
+        if (isWanted(m) && !flush(uuid, sending, events.getBytes(sending), true)) {
+          break; // handled by flushBatch()
         }
-        flush(json + "\n");
+      } else {
+        if (unfiltered == null) {
+          unfiltered = events.getBytes(sending, replayTo);
+          unfilteredFrom = sending;
+        }
+        int i = (int) (sending - unfilteredFrom);
+        if (!flush(uuid, sending, i < unfiltered.size() ? unfiltered.get(i) : null, false)) {
+          break; // handled by flushBatch()
+        }
+      }
+      sent = sending;
+      replayed++;
+    }
+    return replayed;
+  }
+
+  /**
+   * Send a replayed event, as stored unless it needs an id, to avoid re-encoding it.
+   *
+   * @param wanted whether the event is known to be wanted, from its metadata
+   * @return false if the event was not sent, it has to be sent again
+   */
+  protected boolean flush(String uuid, long number, byte[] raw, boolean wanted) {
+    if (raw == null) {
+      return true;
+    }
+    if (wanted && !includeIds) {
+      return offer(uuid, number, raw);
+    }
+    byte[] msg;
+    try {
+      ParsedEvent event = parsedEvents.get(number, raw);
+      if (!wanted && !isWanted(event)) {
+        return true;
       }
+      msg = includeIds ? event.toBytesWithId(uuid + ":" + number) : raw;
+    } catch (RuntimeException e) {
+      log.warn("Cannot parse event " + number + ", not streaming it", e);
+      return true;
+    }
+    return offer(uuid, number, msg);
+  }
+
+  /**
+   * Send a dispatched event, as rendered by the dispatcher. The event is only parsed when the
+   * store does not have its metadata, or when it needs an id.
+   *
+   * @return false if the event was not sent, it has to be sent again
+   */
+  protected boolean flush(String uuid, DispatchedEvent dispatched) {
+    if (dispatched.raw == null) {
+      return true;
+    }
+    if (dispatched.metadata != null) {
+      if (!isWanted(dispatched.metadata)) {
+        return true;
+      }
+    } else {
+      ParsedEvent event = dispatched.getEvent();
+      if (event == null || !isWanted(event)) {
+        return true;
+      }
+    }
+    byte[] msg = includeIds ? dispatched.getRawWithId() : dispatched.raw;
+    return msg == null || offer(uuid, dispatched.number, msg);
+  }
+
+  protected boolean isWanted(EventMetadata metadata) {
+    if (!subscribedEventTypes.isEmpty()
+        && (metadata.type == null || !subscribedEventTypes.contains(metadata.type))) {
+      return false;
+    }
+    try {
+      return perms.isVisibleTo(metadata.getBranch(), currentUser);
+    } catch (PermissionBackendException e) {
+      return false;
+    }
+  }
+
+  protected boolean isWanted(ParsedEvent event) {
+    if (!subscribedEventTypes.isEmpty()
+        && (event.type == null || !subscribedEventTypes.contains(event.type))) {
+      return false;
+    }
+    return perms.isVisibleTo(event, currentUser);
+  }
+
+  protected boolean offer(String uuid, long number, byte[] msg) {
+    if (buffer.offer(number, msg)) {
+      return true;
     }
+    onSlowSession(uuid);
+    return false;
   }
 
-  protected void flush(String msg) {
-    synchronized (stdout) {
-      stdout.print(msg);
-      stdout.flush();
+  /** The client is not keeping up, the buffer is full, apply the slow session policy. */
+  protected void onSlowSession(String uuid) {
+    buffers.onSlowSession();
+    switch (buffers.policy) {
+      case DISCONNECT:
+        disconnect(uuid);
+        break;
+      case REPLAY:
+        long dropped = buffer.clear();
+        if (dropped > 0) {
+          sent = dropped - 1;
+        }
+        break;
+      case PAUSE:
+        break;
+    }
+  }
+
+  /**
+   * Disconnect a slow client, after telling it where to resume from, unless it is too slow to even
+   * read that.
+   */
+  protected void disconnect(String uuid) {
+    String resume = uuid + ":" + buffer.getResumePoint(sent);
+    log.info(
+        "Disconnecting stream session of {}, too slow, it can resume after {}",
+        currentUser.getLoggableName(),
+        resume);
+    unsubscribe();
+    synchronized (crossThreadlock) {
+      shuttingDown = true;
+    }
+    byte[] hint =
+        ("Disconnected, too slow, resume with --resume-after " + resume + "\n")
+            .getBytes(StandardCharsets.UTF_8);
+    AtomicBoolean exited = new AtomicBoolean();
+    Runnable exit =
+        () -> {
+          if (exited.compareAndSet(false, true)) {
+            onExit(1);
+          }
+        };
+    try {
+      asyncErr.writeBuffer(new ByteArrayBuffer(hint)).addListener(f -> exit.run());
+    } catch (IOException e) {
+      exit.run();
     }
+    threadPool.schedule(exit, DISCONNECT_GRACE, TimeUnit.SECONDS);
   }
 
-  protected boolean isUpToDate() throws IOException {
-    return sent >= events.getHead();
+  /**
+   * The dispatcher reads the head for all the sessions, a session is up to date once it has sent
+   * everything dispatched to its buffer, so sessions never read the head.
+   */
+  protected boolean isUpToDate() {
+    StreamDispatcher.Subscription s = subscription;
+    return s == null || (s.peek() == null && sent >= s.getLastDispatched());
   }
 
   protected boolean isFlushing() {
@@ -0,0 +1,151 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the spin loops of the UpdatableFileValues wait between their contended tries, and when they
+ * give up.
+ *
+ * <p>NONE retries at once, up to maxTries. The other policies wait a random delay (full jitter)
+ * between tries so that contending actors spread out instead of all retrying their renames at
+ * once, and they give up once a timeout has passed since the loop started instead of after
+ * maxTries. EXPONENTIAL doubles the maximum delay with every failed try. ADAPTIVE does the same,
+ * but starts from a delay based on the contention recently seen by its sequence, so it retries at
+ * once when uncontended.
+ */
+public abstract class Backoff {
+  public static final String NONE_NAME = "none";
+  public static final String EXPONENTIAL = "exponential";
+  public static final String ADAPTIVE = "adaptive";
+
+  public static final Backoff NONE =
+      new Backoff(0) {
+        @Override
+        protected long getDelay(long tries) {
+          return 0;
+        }
+      };
+
+  /** The state of one spin loop. */
+  public class Spin {
+    protected final long maxTries;
+    protected final long started = System.nanoTime();
+
+    protected Spin(long maxTries) {
+      this.maxTries = maxTries;
+    }
+
+    public boolean canTry(long tries) {
+      if (timeout <= 0) {
+        return tries < maxTries;
+      }
+      return tries == 0 || System.nanoTime() - started < timeout;
+    }
+
+    /** The tries left for the later phases of a transaction started after tries. */
+    public long getRemaining(long tries) {
+      return timeout <= 0 ? maxTries - tries : maxTries;
+    }
+
+    /** Wait before the next try, after failed try number tries. */
+    public void failed(long tries) throws InterruptedIOException {
+      long delay = getDelay(tries);
+      if (delay > 0) {
+        try {
+          NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while backing off");
+        }
+      }
+    }
+
+    /** Record that the loop succeeded after tries failed tries. */
+    public void succeeded(long tries) {
+      Backoff.this.succeeded(tries);
+    }
+  }
+
+  public static class Exponential extends Backoff {
+    protected static final long MIN = MILLISECONDS.toNanos(1);
+
+    protected final long max;
+
+    public Exponential(long maxMs, long timeoutMs) {
+      super(timeoutMs);
+      max = Math.max(MILLISECONDS.toNanos(maxMs), MIN);
+    }
+
+    @Override
+    protected long getDelay(long tries) {
+      long cap = tries < 32 ? Math.min(MIN << tries, max) : max;
+      return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+  }
+
+  public static class Adaptive extends Exponential {
+    protected volatile double contention; // moving average of failed tries per success
+
+    public Adaptive(long maxMs, long timeoutMs) {
+      super(maxMs, timeoutMs);
+    }
+
+    @Override
+    protected long getDelay(long tries) {
+      long level = (long) contention;
+      if (level == 0 && tries == 0) {
+        return 0; // recently uncontended, most likely a single collision
+      }
+      return super.getDelay(tries + level);
+    }
+
+    @Override
+    protected void succeeded(long tries) {
+      contention = contention * 0.9 + tries * 0.1; // lost updates only skew the average a bit
+    }
+  }
+
+  /** Create a policy from its name, NONE if unknown. */
+  public static Backoff create(String name, long maxMs, long timeoutMs) {
+    if (EXPONENTIAL.equals(name)) {
+      return new Exponential(maxMs, timeoutMs);
+    }
+    if (ADAPTIVE.equals(name)) {
+      return new Adaptive(maxMs, timeoutMs);
+    }
+    return NONE;
+  }
+
+  protected final long timeout; // ns, loops are limited by maxTries instead when 0
+
+  protected Backoff(long timeoutMs) {
+    timeout = MILLISECONDS.toNanos(timeoutMs);
+  }
+
+  public Spin start(long maxTries) {
+    return new Spin(maxTries);
+  }
+
+  /** The ns to wait after failed try number tries (0 based). */
+  protected abstract long getDelay(long tries);
+
+  protected void succeeded(long tries) {}
+}
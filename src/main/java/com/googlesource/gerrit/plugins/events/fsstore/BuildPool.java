@@ -0,0 +1,125 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per node pool of scratch trees (build/<tmp>/<uuid>/next) for the UpdateBuilders, created ahead
+ * of time by the housekeeper, so that updates do not have to wait for several directory creations
+ * before they can start phase 1.
+ *
+ * <p>The trees are ordinary build dirs, so they may be deleted by the autoClean() of any actor once
+ * they are old enough. Trees are therefore only handed out while they are much younger than that,
+ * older ones are discarded.
+ */
+public class BuildPool {
+  public static final int DEFAULT_SIZE = 2;
+
+  public static final BuildPool NONE = new BuildPool(null, 0);
+
+  // Well below the expiry of the build dirs in FsTransaction.BasePaths.autoClean()
+  protected static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+  protected static class Tree {
+    public final Path dir;
+    public final String uuid;
+    public final long created;
+
+    protected Tree(Path dir, String uuid, long created) {
+      this.dir = dir;
+      this.uuid = uuid;
+      this.created = created;
+    }
+  }
+
+  protected final UpdatableFileValue.BasePaths paths;
+  protected final int size;
+  protected final Queue<Tree> trees = new ConcurrentLinkedQueue<>();
+
+  /** Updates started from a pooled tree, for metrics. */
+  public final AtomicLong hits = new AtomicLong();
+
+  /** Updates which had to create their tree, for metrics. */
+  public final AtomicLong misses = new AtomicLong();
+
+  public BuildPool(UpdatableFileValue.BasePaths paths, int size) {
+    this.paths = paths;
+    this.size = size;
+  }
+
+  /**
+   * Take a tree from the pool, with its transaction renamed to uuid unless it is null.
+   *
+   * @return null if there is no tree ready, the caller has to create its own
+   */
+  public Tree take(String uuid) {
+    if (size < 1) {
+      return null;
+    }
+    long expiry = System.currentTimeMillis() - MAX_AGE;
+    for (Tree tree = trees.poll(); tree != null; tree = trees.poll()) {
+      if (tree.created > expiry) {
+        replenish();
+        if (uuid == null) {
+          hits.incrementAndGet();
+          return tree;
+        }
+        if (Fs.tryAtomicMove(tree.dir.resolve(tree.uuid), tree.dir.resolve(uuid))) {
+          hits.incrementAndGet();
+          return new Tree(tree.dir, uuid, tree.created);
+        }
+      }
+      discard(tree);
+    }
+    misses.incrementAndGet();
+    replenish();
+    return null;
+  }
+
+  protected void replenish() {
+    paths.housekeeper.executeOnce(this, this::fill);
+  }
+
+  protected void fill() {
+    try {
+      while (trees.size() < size) {
+        trees.add(create());
+      }
+    } catch (IOException e) {
+      // Updates create their own trees until the next replenish()
+    }
+  }
+
+  protected Tree create() throws IOException {
+    Files.createDirectories(paths.build);
+    Files.createDirectories(paths.delete);
+    Path dir = Files.createTempDirectory(paths.build, null);
+    String uuid = UUID.randomUUID().toString();
+    Files.createDirectories(dir.resolve(uuid).resolve(UpdatableFileValue.NEXT));
+    return new Tree(dir, uuid, System.currentTimeMillis());
+  }
+
+  protected void discard(Tree tree) {
+    paths.housekeeper.execute(() -> FsTransaction.tryRenameAndDelete(tree.dir, paths.delete));
+  }
+}
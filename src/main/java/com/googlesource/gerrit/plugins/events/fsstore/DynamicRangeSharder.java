@@ -14,7 +14,15 @@
 
 package com.googlesource.gerrit.plugins.events.fsstore;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * A dynamic range Path sharder for 'long' numbers.
@@ -37,13 +45,34 @@ import java.nio.file.Path;
  * an entry of 1,234,567 would end up as "2.2.2/01/23/45/67" in that subtree. Whereas with 3 orders
  * per level, the same entry 1,234,567 would end up instead in subtree "3.3", which only has 2
  * levels, as "3.3/001/234/567".
+ *
+ * <p>Since paths are computed on every read and append, the block dirs recently used are cached,
+ * and names are padded without formatting.
  */
 public class DynamicRangeSharder {
   public static final int DEFAULT_ORDERS = 3; // most filesystem can handle 1K
+  public static final int MAX_ORDERS = 9;
+
+  protected static final int CACHED_BLOCKS = 16; // a power of 2
+
+  /** A block dir, immutable so that it can be shared between threads without locking. */
+  protected static class Block {
+    final long key; // i / entriesPerLevel
+    final Path dir;
+
+    Block(long key, Path dir) {
+      this.key = key;
+      this.dir = dir;
+    }
+  }
+
   protected final Path base;
   protected final int orders;
   protected final String order;
   protected final long entriesPerLevel;
+  protected final Path[] subtrees; // by levels - 1
+  protected final String separator;
+  protected final Block[] blocks = new Block[CACHED_BLOCKS]; // racy, but Blocks are immutable
 
   public DynamicRangeSharder(Path base) {
     this(base, DEFAULT_ORDERS);
@@ -54,6 +83,44 @@ public class DynamicRangeSharder {
     this.orders = orders;
     this.entriesPerLevel = (long) Math.pow(10, orders);
     order = Long.toString(orders);
+    separator = base.getFileSystem().getSeparator();
+    subtrees = new Path[levels(Long.MAX_VALUE)];
+    String subtree = order;
+    for (int l = 0; l < subtrees.length; l++) {
+      subtrees[l] = base.resolve(subtree);
+      subtree += "." + order;
+    }
+  }
+
+  /** Get the orders of the layouts which have subtrees under base. */
+  public static Set<Integer> findOrders(Path base) throws IOException {
+    Set<Integer> found = new HashSet<>();
+    try (DirectoryStream<Path> dirEntries = Files.newDirectoryStream(base)) {
+      for (Path entry : dirEntries) {
+        String name = entry.getFileName().toString();
+        if (name.matches("([1-9])(\\.\\1)*")) {
+          found.add(name.charAt(0) - '0');
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // No events yet
+    }
+    return found;
+  }
+
+  public int getOrders() {
+    return orders;
+  }
+
+  /** Get the subtrees of this layout which exist, shallowest first. */
+  public List<Path> getSubtrees() {
+    List<Path> existing = new ArrayList<>();
+    for (Path subtree : subtrees) {
+      if (Files.exists(subtree)) {
+        existing.add(subtree);
+      }
+    }
+    return existing;
   }
 
   /** Get the Path where `i` should be stored. */
@@ -63,32 +130,78 @@ public class DynamicRangeSharder {
 
   /** Get the Path of the block that `i` should be stored in. */
   public Path dir(long i) {
-    Path dir = base.resolve(subtreeName(i));
-    for (int level = levels(i) - 1; level > 0; level--) {
+    long key = i / entriesPerLevel;
+    int slot = (int) (key & (CACHED_BLOCKS - 1));
+    Block block = blocks[slot];
+    if (block == null || block.key != key) {
+      block = new Block(key, computeDir(i));
+      blocks[slot] = block;
+    }
+    return block.dir;
+  }
+
+  protected Path computeDir(long i) {
+    int levels = levels(i);
+    Path subtree = subtrees[levels - 1];
+    if (levels == 1) {
+      return subtree;
+    }
+    StringBuilder dirs = new StringBuilder((orders + 1) * (levels - 1));
+    for (int level = levels - 1; level > 0; level--) {
       long sizeOfLevel = sizeOfLevel(level);
       long sub = i / sizeOfLevel;
-      dir = dir.resolve(padToOrder(sub));
+      if (level < levels - 1) {
+        dirs.append(separator);
+      }
+      appendPadded(dirs, sub);
       i = i - (sub * sizeOfLevel);
     }
-    return dir;
+    return subtree.resolve(dirs.toString());
   }
 
   /** Determine whether a number is the last entry in its dir */
   public boolean isLastDirEntry(long i) {
-    return !dir(i).equals(dir(i + 1));
+    return (i + 1) % entriesPerLevel == 0; // the next one starts a block, maybe a new subtree
   }
 
-  protected String subtreeName(long i) {
-    String subtree = order;
-    for (int l = levels(i) - 1; l > 0; l--) {
-      subtree += "." + order;
+  /**
+   * Get the amount of entries of the largest dir (a block, or a dir of blocks) which starts with
+   * `i` and can only hold entries up to `to`, or 1 if there is no such dir. Such dirs can be
+   * deleted at once when deleting a range of entries.
+   */
+  public long dirSize(long i, long to) {
+    long size = 1;
+    for (int level = 1; level < levels(i); level++) {
+      long sizeOfLevel = sizeOfLevel(level);
+      if (i % sizeOfLevel != 0 || i + sizeOfLevel - 1 > to) {
+        break;
+      }
+      size = sizeOfLevel;
+    }
+    return size;
+  }
+
+  /** Get the Path of the dir of `size` entries (see dirSize()) which starts with `i`. */
+  public Path dir(long i, long size) {
+    Path dir = dir(i);
+    for (long s = entriesPerLevel; s < size; s *= entriesPerLevel) {
+      dir = dir.getParent();
     }
-    return subtree;
+    return dir;
   }
 
   /** pad a number to our order. */
   protected String padToOrder(long i) {
-    return String.format("%0" + order + "d", i);
+    StringBuilder padded = new StringBuilder(orders);
+    appendPadded(padded, i);
+    return padded.toString();
+  }
+
+  /** Append the last orders digits of a number, zero padded. */
+  protected void appendPadded(StringBuilder sb, long i) {
+    for (long digit = entriesPerLevel / 10; digit > 0; digit /= 10) {
+      sb.append((char) ('0' + (i / digit) % 10));
+    }
   }
 
   /** how many order levels is number */
@@ -15,8 +15,11 @@
 package com.googlesource.gerrit.plugins.events.fsstore;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * Use a file to store a sequence in a multi node/process (Multi-Master) safe way, and allow an
@@ -29,9 +32,17 @@ import java.nio.file.Paths;
  * <p>The event submitter must perform the first phase of the UpdatableFileValue transaction by
  * initiating the ownerless transaction with an event file in it. Any actor may perform the
  * remaining 5 UpdatableFileValue.
+ *
+ * <p>Several events may be submitted in a single transaction (group commit). The events are then
+ * placed in an "events" dir instead of a single "event" file, and the amount of events is encoded
+ * in the transaction name as "<uuid>.<count>" so that any actor completing the transaction knows
+ * how far to advance the sequence without reading anything else. The sequence is advanced by count
+ * in one commit, and event i (1 based) is stored as sequence number current + i.
  */
 public class EventSequence extends UpdatableFileValue<Long> {
   public static final Path EVENT = Paths.get("event");
+  public static final Path EVENTS = Paths.get("events");
+  public static final String COUNT_SEPARATOR = ".";
 
   /** For phase 1 - 1+ */
   protected static class EventBuilder extends UpdatableFileValue.UpdateBuilder {
@@ -40,19 +51,39 @@ public class EventSequence extends UpdatableFileValue<Long> {
       FileValue.prepare(next.resolve(EVENT), event); // Phase 1+
       // build/<tmp>/<uuid>/next/event
     }
+
+    public EventBuilder(BasePaths paths, List<String> events) throws IOException {
+      super(paths, UUID.randomUUID().toString() + COUNT_SEPARATOR + events.size());
+      Path dir = next.resolve(EVENTS);
+      Files.createDirectory(dir);
+      long i = 1;
+      for (String event : events) {
+        FileValue.prepare(dir.resolve(Long.toString(i++)), event); // Phase 1+
+        // build/<tmp>/<uuid>.<count>/next/events/<i>
+      }
+    }
   }
 
   protected class UniqueUpdate extends UpdatableFileValue.UniqueUpdate<Long> {
     protected final Path event;
+    protected final Path events;
+    protected final long count;
     protected Path destination;
 
     /** Advance through phases 2 - 6 */
     protected UniqueUpdate(String uuid, boolean ours, long maxTries) throws IOException {
       super(EventSequence.this, uuid, ours, maxTries);
       event = upaths.next.resolve(EVENT);
+      events = upaths.next.resolve(EVENTS);
+      count = getCount(uuid);
       spinFinish();
     }
 
+    @Override
+    protected Long getToValue(Long currentValue) {
+      return currentValue + getCount(uuid);
+    }
+
     @Override
     protected void finish() throws IOException {
       storeEvent();
@@ -61,6 +92,10 @@ public class EventSequence extends UpdatableFileValue<Long> {
 
     /** Contains phase 2+ */
     protected void storeEvent() throws IOException {
+      if (count > 1) {
+        storeEvents();
+        return;
+      }
       Path destination = getEventDestination(next);
       // Phase 2+
       if (Fs.tryAtomicMove(event, destination)) { // rename update/<uuid>/next/event -> destination
@@ -68,6 +103,18 @@ public class EventSequence extends UpdatableFileValue<Long> {
         this.destination = destination;
       }
     }
+
+    /** Contains phase 2+ for a group commit */
+    protected void storeEvents() throws IOException {
+      if (Files.exists(events)) {
+        for (long i = 1; i <= count; i++) {
+          // rename update/<uuid>.<count>/next/events/<i> -> destination
+          Fs.tryAtomicMove(events.resolve(Long.toString(i)), getEventDestination(currentValue + i));
+        }
+        // update/<uuid>.<count>/next/ must be empty before it can be closed in phase 4
+        Fs.tryDelete(events);
+      }
+    }
   }
 
   public long totalSpins;
@@ -84,24 +131,49 @@ public class EventSequence extends UpdatableFileValue<Long> {
   // Advance through phases 1 - 6
   protected UniqueUpdate spinSubmit(String event, long maxTries) throws IOException {
     try (EventBuilder b = new EventBuilder(paths, event)) {
-      for (long tries = 0; tries < maxTries; tries++) {
-        // Phase 1 (can only succeed if update is empty or non-existant)
-        if (Fs.tryAtomicMove(b.dir, paths.update)) { // rename build/<tmp>/ -> update/
-          // now there should be: update/<uuid>/next/event
-          synchronized (this) {
-            totalUpdates++;
-            totalSpins += tries - 1;
-          }
-          return createUniqueUpdate(b.uuid, true, maxTries - tries); // Advance phases 2 - 6
-        }
+      return spinSubmit(b, maxTries);
+    }
+  }
+
+  /**
+   * Advance through phases 1 - 6, advancing the sequence once for all the events.
+   *
+   * @return null if there are no events to submit
+   */
+  protected UniqueUpdate spinSubmit(List<String> events, long maxTries) throws IOException {
+    if (events.isEmpty()) {
+      return null;
+    }
+    if (events.size() == 1) {
+      return spinSubmit(events.get(0), maxTries);
+    }
+    try (EventBuilder b = new EventBuilder(paths, events)) {
+      return spinSubmit(b, maxTries);
+    }
+  }
 
-        UniqueUpdate update = (UniqueUpdate) completeOngoing(maxTries - tries);
-        if (update != null) {
-          tries += update.tries - 1;
+  protected UniqueUpdate spinSubmit(EventBuilder b, long maxTries) throws IOException {
+    Backoff.Spin spin = backoff.start(maxTries);
+    for (long tries = 0; spin.canTry(tries); tries++) {
+      // Phase 1 (can only succeed if update is empty or non-existant)
+      if (Fs.tryAtomicMove(b.dir, paths.update)) { // rename build/<tmp>/ -> update/
+        // now there should be: update/<uuid>/next/event
+        synchronized (this) {
+          totalUpdates++;
+          totalSpins += tries - 1;
         }
+        spin.succeeded(tries);
+        return createUniqueUpdate(b.uuid, true, spin.getRemaining(tries)); // Advance phases 2 - 6
+      }
+
+      UniqueUpdate update = (UniqueUpdate) completeOngoing(spin.getRemaining(tries));
+      if (update != null) {
+        tries += update.tries - 1;
+      } else {
+        failed(spin, tries); // another actor's transaction is in progress
       }
-      throw new IOException("Cannot submit event " + paths.base + " after " + maxTries + " tries.");
     }
+    throw new IOException("Cannot submit event " + paths.base + " after " + maxTries + " tries.");
   }
 
   protected Long getToValue(Long currentValue) {
@@ -114,6 +186,22 @@ public class EventSequence extends UpdatableFileValue<Long> {
     return new UniqueUpdate(uuid, ours, maxTries);
   }
 
+  /**
+   * Get the amount of events submitted by the transaction named uuid. Versions without group commit
+   * take every transaction to submit one event, so group commits are only safe once every node
+   * sharing the store knows about the count (see groupCommitSize).
+   */
+  protected static long getCount(String uuid) {
+    int separator = uuid.lastIndexOf(COUNT_SEPARATOR);
+    if (separator > 0) {
+      try {
+        return Long.parseLong(uuid.substring(separator + 1));
+      } catch (NumberFormatException e) { // fall through
+      }
+    }
+    return 1;
+  }
+
   /** Override to shard */
   protected Path getEventDestination(Long n) {
     return paths.base.resolve(EVENT).resolve(n.toString());
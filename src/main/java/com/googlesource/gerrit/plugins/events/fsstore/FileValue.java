@@ -16,12 +16,16 @@ package com.googlesource.gerrit.plugins.events.fsstore;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Helper file for serialzing and storing a single type in a file */
 public class FileValue<T> {
   protected final Path path;
   protected Serializer<T> serializer;
 
+  /** Reads retried because of stale file handles, for metrics. */
+  public final AtomicLong staleFileHandles = new AtomicLong();
+
   /**
    * Use this constructor to use a builtin serializer (String or Long), and be sure to call init(T)
    * with a value of your type for the serializer auto identification to happen.
@@ -64,6 +68,7 @@ public class FileValue<T> {
         return get();
       } catch (IOException e) {
         Nfs.throwIfNotStaleFileHandle(e);
+        staleFileHandles.incrementAndGet();
       }
     }
     throw new IOException(
@@ -28,6 +28,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
@@ -122,6 +123,19 @@ public class Fs {
     return true;
   }
 
+  /**
+   * Get a key which changes whenever the file is replaced or modified (its file key, modification
+   * time and size), with a single stat. Returns null if the file cannot be stat'ed.
+   */
+  public static Object getChangeKey(Path path) {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      return Arrays.asList(attrs.fileKey(), attrs.lastModifiedTime(), attrs.size());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   /** Is an entry older than expiry. Do NOT throw IOExceptions. */
   public static boolean isOlderThan(Path path, FileTime expiry) {
     try {
@@ -179,6 +193,11 @@ public class Fs {
     return builder.toString();
   }
 
+  /** Read the contents of a file without decoding them. */
+  public static byte[] readBytes(Path file) throws IOException {
+    return Files.readAllBytes(file);
+  }
+
   /** Write the contents of a String as a UTF_8 encoded file */
   public static void writeUtf8(Path file, String s) throws IOException {
     Files.write(file, s.getBytes(StandardCharsets.UTF_8));
@@ -16,56 +16,186 @@ package com.googlesource.gerrit.plugins.events.fsstore;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.events.EventDispatcher;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.events.EventStore;
 import com.googlesource.gerrit.plugins.events.FileSystemEventBroker;
 import com.googlesource.gerrit.plugins.events.PollingInterval;
 import com.googlesource.gerrit.plugins.events.PollingQueue;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class FsListener implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(FsListener.class);
+
+  /**
+   * Poll the store every pollingInterval, or adaptively between pollingInterval and
+   * maxPollingInterval: the interval is reset to pollingInterval whenever a poll finds events from
+   * other nodes, and doubled after every poll which does not.
+   */
+  @Singleton
   public static class FsLifecycleListener implements LifecycleListener {
     protected final String workQueue;
     protected final WorkQueue queue;
     protected final long pollingInterval;
+    protected final long maxPollingInterval;
     protected final FileSystemEventBroker broker;
-    protected ScheduledFuture<?> future;
+    protected final FsListener listener;
+    protected final EventStore store;
+    protected final boolean watch;
+    protected final Counter0 polls;
+    protected final Counter0 pollsWithEvents;
+    protected final Runnable pollTask =
+        new Runnable() {
+          @Override
+          public void run() {
+            poll();
+          }
+
+          @Override
+          public String toString() {
+            return listener.toString();
+          }
+        };
+
+    protected ScheduledExecutorService executor;
+    protected ScheduledFuture<?> future; // sync on this
+    protected boolean stopped; // sync on this
+    protected volatile long interval;
+    protected FsWatcher watcher;
 
     @Inject
     protected FsLifecycleListener(
         WorkQueue queue,
         @PollingInterval long pollingInterval,
         EventDispatcher dispatcher,
-        @PollingQueue String workQueue) {
+        @PollingQueue String workQueue,
+        EventStore store,
+        PluginConfigFactory cfg,
+        @PluginName String pluginName,
+        MetricMaker metricMaker) {
       this.queue = queue;
       this.pollingInterval = pollingInterval;
       this.broker = (FileSystemEventBroker) dispatcher;
       this.workQueue = workQueue;
+      this.store = store;
+      listener = new FsListener(broker);
+      PluginConfig pluginCfg = cfg.getFromGerritConfig(pluginName);
+      watch = pluginCfg.getBoolean("watch", false);
+      maxPollingInterval =
+          getMaxPollingInterval(pollingInterval, pluginCfg.getString("maxPollingInterval"));
+      interval = pollingInterval;
+
+      metricMaker.newCallbackMetric(
+          "polling/interval",
+          Long.class,
+          new Description("Current interval between polls of the event store")
+              .setGauge()
+              .setUnit(Description.Units.MILLISECONDS),
+          () -> interval);
+      polls =
+          metricMaker.newCounter(
+              "polling/polls", new Description("Polls of the event store").setRate());
+      pollsWithEvents =
+          metricMaker.newCounter(
+              "polling/polls_with_events",
+              new Description("Polls of the event store which found events from other nodes")
+                  .setRate());
     }
 
     @Override
     public void start() {
+      if (watch) {
+        startWatcher();
+      }
       if (pollingInterval > 0) {
-        ScheduledExecutorService executor = queue.getExecutor(workQueue);
+        executor = queue.getExecutor(workQueue);
         if (executor == null) {
           executor = queue.getDefaultQueue();
         }
-        future =
-            executor.scheduleAtFixedRate(
-                new FsListener(broker), pollingInterval, pollingInterval, MILLISECONDS);
+        schedule();
+      }
+    }
+
+    protected synchronized void schedule() {
+      if (!stopped) {
+        future = executor.schedule(pollTask, interval, MILLISECONDS);
+      }
+    }
+
+    protected void poll() {
+      try {
+        boolean found = listener.poll();
+        polls.increment();
+        if (found) {
+          pollsWithEvents.increment();
+        }
+        interval = getNextInterval(interval, found);
+      } finally {
+        schedule();
+      }
+    }
+
+    /** Parse the maxPollingInterval in ms, it is never shorter than the pollingInterval. */
+    protected static long getMaxPollingInterval(long pollingInterval, String value) {
+      return Math.max(
+          pollingInterval,
+          ConfigUtil.getTimeUnit(Strings.nullToEmpty(value), 0, MILLISECONDS));
+    }
+
+    protected long getNextInterval(long current, boolean found) {
+      if (found) {
+        return pollingInterval;
+      }
+      return Math.min(current * 2, maxPollingInterval);
+    }
+
+    /** Watch the head of the store if possible, otherwise rely on polling alone. */
+    protected void startWatcher() {
+      Path head = store instanceof FsStore ? ((FsStore) store).getHeadFile() : null;
+      if (head == null) {
+        log.warn("Cannot watch the event store, it does not have a head file");
+        return;
+      }
+      try {
+        watcher = new FsWatcher(head, listener::fire);
+        watcher.start();
+      } catch (IOException e) {
+        log.warn("Cannot watch the event store, falling back to polling", e);
       }
     }
 
     @Override
     public void stop() {
-      if (future != null) {
-        future.cancel(true);
+      synchronized (this) {
+        stopped = true;
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
+      if (watcher != null) {
+        watcher.stop();
+        watcher = null;
+      }
+      if (store instanceof FsStore) {
+        ((FsStore) store).shutdown();
       }
     }
   }
@@ -79,6 +209,20 @@ public class FsListener implements Runnable {
 
   @Override
   public void run() {
+    poll();
+  }
+
+  /** Poll the store, return whether it found events. */
+  public boolean poll() {
+    try {
+      return broker.pollForStreamListeners();
+    } catch (PermissionBackendException e) {
+      return false;
+    }
+  }
+
+  /** Fire the stream listeners, the head is known to have changed. */
+  public void fire() {
     try {
       broker.fireEventForStreamListeners();
     } catch (PermissionBackendException e) {
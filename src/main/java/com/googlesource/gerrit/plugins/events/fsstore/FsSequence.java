@@ -16,6 +16,7 @@ package com.googlesource.gerrit.plugins.events.fsstore;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.UUID;
 
 /**
  * Use a file to store a sequence in a multi node/process (Multi-Master) safe way.
@@ -23,14 +24,29 @@ import java.nio.file.Path;
  * <p>Any actor may perform any/all of the 6 UpdatableFileValue transaction phases. The actor
  * performing the commit will be considered to have performed the increment to the new sequence
  * value.
+ *
+ * <p>The sequence may also be advanced to a target value in a single transaction. The target is
+ * encoded in the transaction name as "<uuid>.<target>", so that any actor completing the
+ * transaction proposes the same new value, the greater of the current value and the target.
+ * Versions which do not know about targets complete such a transaction as an increment, so the
+ * advancing actor checks the value once the transaction is committed by another actor, and
+ * advances it again if needed.
  */
 public class FsSequence extends UpdatableFileValue<Long> {
+  public static final String TARGET_SEPARATOR = ".";
+
   /** Advance through phases 2 - 6 */
   protected class UniqueUpdate extends UpdatableFileValue.UniqueUpdate<Long> {
     UniqueUpdate(String uuid, boolean ours, long maxTries) throws IOException {
       super(FsSequence.this, uuid, ours, maxTries);
       spinFinish();
     }
+
+    @Override
+    protected Long getToValue(Long currentValue) {
+      Long target = getTarget(uuid);
+      return target == null ? super.getToValue(currentValue) : Math.max(currentValue, target);
+    }
   }
 
   public long totalSpins;
@@ -47,14 +63,16 @@ public class FsSequence extends UpdatableFileValue<Long> {
   /**
    * Attempt up to maxTries to increment the sequence (advance through all 6 phases).
    *
-   * @param maxTries How many times to attempt to increment the sequence
+   * @param maxTries How many times to attempt to increment the sequence, unless the backoff of the
+   *     sequence has a timeout
    * @return the new sequence value after this increment.
    */
   public long spinIncrement(long maxTries) throws IOException {
+    Backoff.Spin spin = backoff.start(maxTries);
     long tries = 0;
-    for (; tries < maxTries; tries++) {
+    for (; spin.canTry(tries); tries++) {
       try (UpdateBuilder b = new UpdateBuilder(paths)) {
-        for (; tries < maxTries; tries++) {
+        for (; spin.canTry(tries); tries++) {
           UniqueUpdate update = null;
           // Phase 1
           if (Fs.tryAtomicMove(b.dir, paths.update)) { // rename build/<tmp>/ -> update/
@@ -67,11 +85,15 @@ public class FsSequence extends UpdatableFileValue<Long> {
             tries += update.tries - 1;
             if (update.myCommit) {
               spun(tries);
+              spin.succeeded(tries);
               return update.next;
             }
             if (update.ours && update.finished) {
+              failed(spin, tries);
               break; // usurped -> outer loop can make a new transaction
             }
+          } else {
+            failed(spin, tries); // another actor's transaction is in progress
           }
         }
       }
@@ -81,6 +103,55 @@ public class FsSequence extends UpdatableFileValue<Long> {
         "Cannot increment sequence file " + path + " after " + maxTries + " tries.");
   }
 
+  /**
+   * Attempt up to maxTries to advance the sequence to at least target (advance through all 6
+   * phases). Unlike increments, concurrent advances never overshoot the greatest target.
+   *
+   * @return the sequence value once it is at least target
+   */
+  public long spinAdvanceTo(long target, long maxTries) throws IOException {
+    Backoff.Spin spin = backoff.start(maxTries);
+    long tries = 0;
+    for (; spin.canTry(tries); tries++) {
+      long current = spinGet(maxTries);
+      if (current >= target) {
+        return current;
+      }
+      String uuid = UUID.randomUUID().toString() + TARGET_SEPARATOR + target;
+      try (UpdateBuilder b = new UpdateBuilder(paths, uuid)) {
+        for (; spin.canTry(tries); tries++) {
+          UniqueUpdate update = null;
+          // Phase 1
+          if (Fs.tryAtomicMove(b.dir, paths.update)) { // rename build/<tmp>/ -> update/
+            // now there should be: update/<uuid>.<target>/
+            // Advances through phases 2 - 6
+            update = new UniqueUpdate(b.uuid, true, spin.getRemaining(tries));
+          } else {
+            update = (UniqueUpdate) completeOngoing(spin.getRemaining(tries));
+          }
+          if (update != null) {
+            tries += update.tries - 1;
+            if (update.ours && update.finished) {
+              // Committed, by us or another actor, as an increment if by an older version
+              long value = update.myCommit ? update.next : spinGet(maxTries);
+              if (value >= target) {
+                spun(tries);
+                spin.succeeded(tries);
+                return value;
+              }
+              break; // outer loop can make a new transaction
+            }
+          } else {
+            failed(spin, tries); // another actor's transaction is in progress
+          }
+        }
+      }
+    }
+    spun(tries - 1);
+    throw new IOException(
+        "Cannot advance sequence file " + path + " after " + maxTries + " tries.");
+  }
+
   /**
    * Attempt once to increment the sequence (advance through all 6 phases).
    *
@@ -109,6 +180,18 @@ public class FsSequence extends UpdatableFileValue<Long> {
     return currentValue + 1;
   }
 
+  /** Get the target of an advance transaction, or null for an increment. */
+  protected static Long getTarget(String uuid) {
+    int separator = uuid.lastIndexOf(TARGET_SEPARATOR);
+    if (separator > 0) {
+      try {
+        return Long.parseLong(uuid.substring(separator + 1));
+      } catch (NumberFormatException e) { // fall through
+      }
+    }
+    return null;
+  }
+
   @Override
   protected UniqueUpdate createUniqueUpdate(String uuid, boolean ours, long maxTries)
       throws IOException {
@@ -14,29 +14,192 @@
 
 package com.googlesource.gerrit.plugins.events.fsstore;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.events.EventMetadata;
 import com.googlesource.gerrit.plugins.events.EventStore;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import javax.inject.Singleton;
 
-/** Use a filesystem to store events in a multi node/process (Multi-Master) safe way. */
+/**
+ * Use a filesystem to store events in a multi node/process (Multi-Master) safe way.
+ *
+ * <p>Events are immutable once stored, so recently read events are kept as stored (UTF_8 lines) in
+ * a memory bounded cache (the "recent_events" Gerrit cache) to avoid reading them from disk again
+ * for every stream session. Only trimming removes events, and trimmed events are evicted from the
+ * cache.
+ *
+ * <p>The metadata of the events is stored in a sidecar file per event once the event is stored, in
+ * the background and only on a best effort basis, so that the transactions of the events stay
+ * unchanged (nodes running older versions can still complete them). Readers of the metadata read
+ * the event instead when its metadata is missing. Trimming removes the metadata with the events.
+ *
+ * <p>The latency of the store operations, the contention on its sequences, and its bounds are
+ * reported as metrics.
+ */
 @Singleton
 public class FsStore implements EventStore {
+  public static final String CACHE_NAME = "recent_events";
+  public static final long DEFAULT_CACHE_WEIGHT = 8 * 1024 * 1024;
+
+  /** Weigh cached events by their approximate size in bytes. */
+  public static class EventWeigher implements Weigher<Long, byte[]> {
+    @Override
+    public int weigh(Long num, byte[] event) {
+      return Long.BYTES + event.length;
+    }
+  }
+
+  public static com.google.inject.Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Long.class, byte[].class)
+            .maximumWeight(DEFAULT_CACHE_WEIGHT)
+            .weigher(EventWeigher.class);
+      }
+    };
+  }
+
+  /** Tunables for the store, the defaults are used unless configured in the plugin config. */
+  public static class Config {
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 1; // until every primary supports it
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW = 0;
+    public static final int DEFAULT_LEASE_SIZE = 1;
+    public static final long DEFAULT_LEASE_TIMEOUT = 10000;
+    public static final long DEFAULT_HEAD_READ_INTERVAL = 10000;
+    public static final long DEFAULT_BACKOFF_MAX = 100;
+    public static final long DEFAULT_BACKOFF_TIMEOUT = 60000;
+
+    /** Max events per head transaction, 1 disables group commit. */
+    public int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+
+    /** Max ms to wait for more events to join a group commit. */
+    public long groupCommitWindow = DEFAULT_GROUP_COMMIT_WINDOW;
+
+    /** Event numbers leased per node at once, 1 disables leasing (see LeasedFsStore). */
+    public int leaseSize = DEFAULT_LEASE_SIZE;
+
+    /** Max ms a leased block may stay open before other nodes close it. */
+    public long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+    /** Max ms hasHeadChanged() may rely on the attributes of the head without reading it. */
+    public long headReadInterval = DEFAULT_HEAD_READ_INTERVAL;
+
+    /** How contended updates of the sequences wait between tries (see Backoff). */
+    public String backoff = Backoff.NONE_NAME;
+
+    /** Max ms to wait between two tries. */
+    public long backoffMax = DEFAULT_BACKOFF_MAX;
+
+    /** Max ms to keep trying an update, unless backoff is none. */
+    public long backoffTimeout = DEFAULT_BACKOFF_TIMEOUT;
+
+    /** Max housekeeping tasks waiting for the background thread, 0 runs them inline. */
+    public int housekeepingBacklog = Housekeeper.DEFAULT_MAX_BACKLOG;
+
+    /** Build trees prepared ahead for the appends, needs housekeeping, 0 disables pooling. */
+    public int buildPoolSize = BuildPool.DEFAULT_SIZE;
+
+    /** Orders of magnitude per shard level of the events (see DynamicRangeSharder). */
+    public int shardOrders = DynamicRangeSharder.DEFAULT_ORDERS;
+
+    public Config() {}
+
+    public Config(PluginConfig cfg) {
+      groupCommitSize = cfg.getInt("groupCommitSize", DEFAULT_GROUP_COMMIT_SIZE);
+      groupCommitWindow =
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString("groupCommitWindow")),
+              DEFAULT_GROUP_COMMIT_WINDOW,
+              MILLISECONDS);
+      leaseSize = cfg.getInt("leaseSize", DEFAULT_LEASE_SIZE);
+      leaseTimeout =
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString("leaseTimeout")),
+              DEFAULT_LEASE_TIMEOUT,
+              MILLISECONDS);
+      headReadInterval =
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString("headReadInterval")),
+              DEFAULT_HEAD_READ_INTERVAL,
+              MILLISECONDS);
+      backoff = cfg.getString("backoff", Backoff.NONE_NAME);
+      backoffMax =
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString("backoffMax")), DEFAULT_BACKOFF_MAX, MILLISECONDS);
+      backoffTimeout =
+          ConfigUtil.getTimeUnit(
+              Strings.nullToEmpty(cfg.getString("backoffTimeout")),
+              DEFAULT_BACKOFF_TIMEOUT,
+              MILLISECONDS);
+      housekeepingBacklog = cfg.getInt("housekeepingBacklog", Housekeeper.DEFAULT_MAX_BACKLOG);
+      buildPoolSize = cfg.getInt("buildPoolSize", BuildPool.DEFAULT_SIZE);
+      shardOrders = cfg.getInt("shardOrders", DynamicRangeSharder.DEFAULT_ORDERS);
+    }
+
+    /** The size of the build pools, which are only worth it with background housekeeping. */
+    public int getBuildPoolSize() {
+      return housekeepingBacklog > 0 ? buildPoolSize : 0;
+    }
+
+    /** A new backoff, each sequence needs its own since adaptive ones track its contention. */
+    public Backoff newBackoff() {
+      return Backoff.create(backoff, backoffMax, backoffTimeout);
+    }
+  }
+
   protected static class BasePaths {
+    final Path base;
     final Path uuid;
     final Path head;
     final Path tail;
+    final Path claims;
     final DynamicRangeSharder events;
+    final DynamicRangeSharder metadata; // never re-laid out, so it keeps the default orders
 
-    public BasePaths(Path base) {
+    public BasePaths(Path base, int orders) {
+      this.base = base;
       uuid = base.resolve("uuid");
-      events = new DynamicRangeSharder(base.resolve("events"));
+      orders = Math.min(Math.max(orders, 1), DynamicRangeSharder.MAX_ORDERS);
+      events = new DynamicRangeSharder(base.resolve("events"), orders);
+      metadata =
+          new DynamicRangeSharder(base.resolve("metadata"), DynamicRangeSharder.DEFAULT_ORDERS);
       head = base.resolve("head");
       tail = base.resolve("tail");
+      claims = base.resolve("claims");
     }
   }
 
@@ -48,15 +211,43 @@ public class FsStore implements EventStore {
       this.paths = paths;
     }
 
+    protected volatile Path lastDir; // known to exist
+    protected volatile Path nextDir; // created ahead, known to exist
+
+    /**
+     * Get the destination of an event. Its dir is only created when this node has not already
+     * created it, and the next dir is created ahead by the housekeeper once the head enters a dir.
+     */
     @Override
     protected Path getEventDestination(Long n) {
       Path event = paths.events.path(n);
-      try {
-        Fs.createDirectories(event.getParent());
-      } catch (IOException e) {
+      Path dir = event.getParent();
+      if (!dir.equals(lastDir)) {
+        if (!dir.equals(nextDir)) {
+          try {
+            Fs.createDirectories(dir);
+          } catch (IOException e) {
+          }
+        }
+        lastDir = dir;
+        createAhead(paths.events.dir(n + paths.events.entriesPerLevel));
       }
       return event;
     }
+
+    protected void createAhead(Path dir) {
+      getHousekeeper()
+          .executeOnce(
+              this,
+              () -> {
+                try {
+                  Fs.createDirectories(dir);
+                  nextDir = dir;
+                } catch (IOException e) {
+                  // Created on demand instead
+                }
+              });
+    }
   }
 
   protected static class Stores {
@@ -81,25 +272,218 @@ public class FsStore implements EventStore {
   public static final long MAX_SUBMIT_SPINS = 100000;
   public static final long MAX_INCREMENT_SPINS = 1000;
 
+  /** How stale the head and tail reported as metrics may be. */
+  protected static final long METRICS_MAX_AGE_MS = 10000;
+  protected static final int RELAYOUT_BATCH = 1000;
+  protected static final long LAYOUT_REFRESH_MS = 1000;
+
+  /** An event submitted to the group commit, with its metadata. */
+  protected static class Submission {
+    protected final String line;
+    protected final EventMetadata metadata;
+
+    protected Submission(String line, EventMetadata metadata) {
+      this.line = line;
+      this.metadata = metadata;
+    }
+  }
+
   protected final BasePaths paths;
   protected final Stores stores;
   protected final UUID uuid;
+  protected final Path build; // only used for temporary files
 
   protected final SequenceCache cachedHead;
   protected final SequenceCache cachedTail;
+  protected final GroupCommit<Submission> groupCommit;
+  protected final Housekeeper housekeeper;
+  protected volatile List<DynamicRangeSharder> legacy = new ArrayList<>(); // layouts to move from
+  protected volatile long legacyFoundAt;
+  protected final Cache<Long, byte[]> cache;
+  protected final long headReadInterval;
+
+  protected final Timer0 addLatency;
+  protected final Timer0 readLatency;
+  protected final Timer0 trimLatency;
+  protected final Timer0 headReadLatency;
 
   @Inject
-  public FsStore(SitePaths site) throws IOException {
-    this(site.data_dir.resolve("plugin").resolve("events").resolve("fstore-v2"));
+  public FsStore(
+      SitePaths site,
+      PluginConfigFactory cfg,
+      @PluginName String pluginName,
+      @Named(CACHE_NAME) Cache<Long, byte[]> cache,
+      MetricMaker metricMaker)
+      throws IOException {
+    this(getBase(site), new Config(cfg.getFromGerritConfig(pluginName)), cache, metricMaker);
+  }
+
+  /** A cache for stores created outside of Guice. */
+  protected static Cache<Long, byte[]> newCache() {
+    return CacheBuilder.newBuilder()
+        .maximumWeight(DEFAULT_CACHE_WEIGHT)
+        .weigher(new EventWeigher())
+        .build();
+  }
+
+  public static Path getBase(SitePaths site) {
+    return site.data_dir.resolve("plugin").resolve("events").resolve("fstore-v2");
   }
 
   public FsStore(Path base) throws IOException {
-    paths = new BasePaths(base);
+    this(base, new Config());
+  }
+
+  public FsStore(Path base, Config config) throws IOException {
+    this(base, config, newCache());
+  }
+
+  public FsStore(Path base, Config config, Cache<Long, byte[]> cache) throws IOException {
+    this(base, config, cache, new DisabledMetricMaker());
+  }
+
+  public FsStore(Path base, Config config, Cache<Long, byte[]> cache, MetricMaker metricMaker)
+      throws IOException {
+    this.cache = cache;
+    headReadInterval = config.headReadInterval;
+    paths = new BasePaths(base, config.shardOrders);
     stores = new Stores(paths);
     stores.initFs();
+    build = new FsTransaction.BasePaths(paths.head).build;
+    Files.createDirectories(build);
+    stores.head.setBackoff(config.newBackoff());
+    stores.tail.setBackoff(config.newBackoff());
+    housekeeper = new Housekeeper(config.housekeepingBacklog);
+    stores.head.setHousekeeper(housekeeper);
+    stores.tail.setHousekeeper(housekeeper);
+    stores.head.setBuildPool(config.getBuildPoolSize());
     uuid = UUID.fromString(stores.uuid.get());
     cachedHead = new SequenceCache(stores.head);
     cachedTail = new SequenceCache(stores.tail);
+    findLegacyLayouts();
+    groupCommit =
+        config.groupCommitSize > 1
+            ? new GroupCommit<Submission>(
+                this::commit,
+                config.groupCommitSize,
+                config.groupCommitWindow)
+            : null;
+
+    addLatency = newTimer(metricMaker, "store/add_latency", "Time to add events to the store");
+    readLatency =
+        newTimer(metricMaker, "store/read_latency", "Time to read an event from the filesystem");
+    trimLatency = newTimer(metricMaker, "store/trim_latency", "Time to trim the store");
+    headReadLatency =
+        newTimer(metricMaker, "store/head_read_latency", "Time to read the head of the store");
+    newCumulative(
+        metricMaker,
+        "store/spins",
+        "Failed tries to start an update of the store sequences (contention)",
+        s -> s.spins.get());
+    newCumulative(
+        metricMaker,
+        "store/stale_file_handle_retries",
+        "Reads of the store sequences retried because of stale file handles",
+        s -> s.staleFileHandles.get());
+    newCumulative(
+        metricMaker,
+        "store/ongoing_takeovers",
+        "Stalled updates of the store sequences completed for other actors",
+        s -> s.takeovers.get());
+    metricMaker.newCallbackMetric(
+        "store/housekeeping_backlog",
+        Integer.class,
+        new Description("Housekeeping tasks waiting for the background thread").setGauge(),
+        housekeeper::getBacklog);
+    metricMaker.newCallbackMetric(
+        "store/housekeeping_tasks",
+        Long.class,
+        new Description("Housekeeping tasks run").setCumulative(),
+        housekeeper.tasks::get);
+    metricMaker.newCallbackMetric(
+        "store/housekeeping_overflows",
+        Long.class,
+        new Description("Housekeeping tasks run inline because the backlog was full")
+            .setCumulative(),
+        housekeeper.overflows::get);
+    newCumulative(
+        metricMaker,
+        "store/build_pool_hits",
+        "Updates of the store sequences started from a pooled build tree",
+        s -> s.paths.pool.hits.get());
+    newCumulative(
+        metricMaker,
+        "store/build_pool_misses",
+        "Updates of the store sequences which had to create their build tree",
+        s -> s.paths.pool.misses.get());
+    metricMaker.newCallbackMetric(
+        "store/head",
+        Long.class,
+        new Description("Number of the newest event in the store").setGauge(),
+        this::getHeadForMetrics);
+    metricMaker.newCallbackMetric(
+        "store/tail",
+        Long.class,
+        new Description("Number of the oldest event in the store").setGauge(),
+        this::getTailForMetrics);
+    metricMaker.newCallbackMetric(
+        "store/backlog",
+        Long.class,
+        new Description("Events in the store, from the tail to the head")
+            .setGauge()
+            .setUnit("events"),
+        () -> {
+          long head = getHeadForMetrics();
+          long tail = getTailForMetrics();
+          return head >= tail && tail > 0 ? head - tail + 1 : 0;
+        });
+  }
+
+  protected static Timer0 newTimer(MetricMaker metricMaker, String name, String description) {
+    return metricMaker.newTimer(
+        name,
+        new Description(description).setCumulative().setUnit(Description.Units.MILLISECONDS));
+  }
+
+  protected void newCumulative(
+      MetricMaker metricMaker,
+      String name,
+      String description,
+      Function<UpdatableFileValue<Long>, Long> stat) {
+    metricMaker.newCallbackMetric(
+        name,
+        Long.class,
+        new Description(description).setCumulative(),
+        () -> getSequences().stream().mapToLong(stat::apply).sum());
+  }
+
+  /** The sequences of the store, for metrics. */
+  protected List<UpdatableFileValue<Long>> getSequences() {
+    return Arrays.asList(stores.head, stores.tail);
+  }
+
+  protected long getHeadForMetrics() {
+    try {
+      return getHead(METRICS_MAX_AGE_MS, MILLISECONDS);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  protected long getTailForMetrics() {
+    try {
+      if (getHeadForMetrics() == 0) {
+        return 0;
+      }
+      return Math.max(cachedTail.get(METRICS_MAX_AGE_MS, MILLISECONDS, MAX_GET_SPINS), 1);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /** Stop the background housekeeping, the store still works but housekeeps inline. */
+  public void shutdown() {
+    housekeeper.shutdown();
   }
 
   @Override
@@ -109,26 +493,384 @@ public class FsStore implements EventStore {
 
   @Override
   public void add(String event) throws IOException {
-    stores.head.spinSubmit(event + "\n", MAX_SUBMIT_SPINS);
+    add(event, null);
+  }
+
+  @Override
+  public void addAll(List<String> events) throws IOException {
+    addAll(events, null);
+  }
+
+  @Override
+  public void add(String event, EventMetadata metadata) throws IOException {
+    long start = System.nanoTime();
+    if (groupCommit != null) {
+      groupCommit.submit(new Submission(event + "\n", metadata));
+    } else {
+      storeMetadata(
+          stores.head.spinSubmit(event + "\n", MAX_SUBMIT_SPINS),
+          Collections.singletonList(metadata));
+    }
+    relayoutIfNeeded();
+    addLatency.record(System.nanoTime() - start, NANOSECONDS);
+  }
+
+  /**
+   * Add the events in a single group transaction if group commit is enabled, otherwise one by one,
+   * since older versions cannot complete group transactions (see groupCommitSize).
+   */
+  @Override
+  public void addAll(List<String> events, List<EventMetadata> metadata) throws IOException {
+    long start = System.nanoTime();
+    if (groupCommit != null) {
+      List<String> lines = new ArrayList<>(events.size());
+      for (String event : events) {
+        lines.add(event + "\n");
+      }
+      storeMetadata(stores.head.spinSubmit(lines, MAX_SUBMIT_SPINS), metadata);
+    } else {
+      for (int i = 0; i < events.size(); i++) {
+        storeMetadata(
+            stores.head.spinSubmit(events.get(i) + "\n", MAX_SUBMIT_SPINS),
+            Collections.singletonList(metadata == null ? null : metadata.get(i)));
+      }
+    }
+    relayoutIfNeeded();
+    addLatency.record(System.nanoTime() - start, NANOSECONDS);
+  }
+
+  /** Commit a batch of the group commit. */
+  protected void commit(List<Submission> submissions) throws IOException {
+    List<String> lines = new ArrayList<>(submissions.size());
+    List<EventMetadata> metadata = new ArrayList<>(submissions.size());
+    for (Submission submission : submissions) {
+      lines.add(submission.line);
+      metadata.add(submission.metadata);
+    }
+    storeMetadata(stores.head.spinSubmit(lines, MAX_SUBMIT_SPINS), metadata);
+  }
+
+  /**
+   * Store the metadata of the events of an update, only if this actor committed it. When another
+   * actor finished the update, the value read is its advanced head, which numbers other events.
+   */
+  protected void storeMetadata(EventSequence.UniqueUpdate update, List<EventMetadata> metadata) {
+    if (update != null && update.myCommit && update.currentValue != null && metadata != null) {
+      for (int i = 0; i < metadata.size(); i++) {
+        storeMetadata(update.currentValue + 1 + i, metadata.get(i));
+      }
+    }
+  }
+
+  /**
+   * Store the metadata of a stored event in the background, the event is read instead if this
+   * fails. Metadata files are moved into place, so readers never see partial ones.
+   */
+  protected void storeMetadata(long num, EventMetadata metadata) {
+    if (metadata == null) {
+      return;
+    }
+    housekeeper.execute(
+        () -> {
+          Path tmp = null;
+          try {
+            if (num < getTail()) {
+              return; // trimmed meanwhile
+            }
+            Path destination = paths.metadata.path(num);
+            Fs.createDirectories(destination.getParent());
+            tmp = Files.createTempFile(build, "metadata", null);
+            Fs.writeUtf8(tmp, metadata.encode());
+            if (Fs.tryAtomicMove(tmp, destination)) {
+              tmp = null;
+            }
+          } catch (IOException e) {
+            // The event is read instead
+          } finally {
+            if (tmp != null) {
+              Fs.tryDelete(tmp);
+            }
+          }
+        });
+  }
+
+  @Override
+  public List<EventMetadata> getMetadata(long from, long to) throws IOException {
+    if (!isHeadAtLeast(to)) {
+      to = Math.min(to, getHead());
+    }
+    List<EventMetadata> metadata = new ArrayList<>();
+    if (from <= to) {
+      long tail = getTail();
+      for (long num = from; num <= to; num++) {
+        metadata.add(num < tail || num < 1 ? null : readMetadata(num));
+      }
+    }
+    return metadata;
+  }
+
+  /** Read the metadata of an event, null if it is missing or invalid. */
+  protected EventMetadata readMetadata(long num) {
+    try {
+      byte[] line = Fs.readBytes(paths.metadata.path(num)); // readUtf8() drops the newline
+      return EventMetadata.decode(new String(line, StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      return null;
+    }
   }
 
   @Override
   public long getHead() throws IOException {
-    return cachedHead.spinGet(MAX_GET_SPINS);
+    long start = System.nanoTime();
+    long head = cachedHead.spinGet(MAX_GET_SPINS);
+    headReadLatency.record(System.nanoTime() - start, NANOSECONDS);
+    return head;
+  }
+
+  @Override
+  public long getHead(long maxAge, TimeUnit unit) throws IOException {
+    return cachedHead.get(maxAge, unit, MAX_GET_SPINS);
+  }
+
+  @Override
+  public boolean hasHeadChanged(long head) throws IOException {
+    return cachedHead.hasChanged(head, headReadInterval, MILLISECONDS);
+  }
+
+  /** The file which is replaced whenever the head advances, for watchers, null if there is none. */
+  public Path getHeadFile() {
+    return stores.head.path;
+  }
+
+  /**
+   * Claim the slot with a hard link named after it, since creating a link is atomic, even on NFS.
+   * The winner cleans up the links of the earlier slots.
+   */
+  @Override
+  public boolean claim(String task, long slot) throws IOException {
+    Path dir = Fs.createDirectories(paths.claims.resolve(task));
+    Path tmp = Files.createTempFile(dir, "tmp", null);
+    boolean claimed = Fs.tryCreateLink(dir.resolve("" + slot), tmp);
+    Fs.tryDelete(tmp);
+    if (claimed) {
+      try (DirectoryStream<Path> dirEntries = Files.newDirectoryStream(dir)) {
+        for (Path entry : dirEntries) {
+          String name = entry.getFileName().toString();
+          if (name.matches("[0-9]+") && Long.parseLong(name) < slot) {
+            Fs.tryDelete(entry);
+          }
+        }
+      }
+    }
+    return claimed;
   }
 
   @Override
   public String get(long num) throws IOException {
+    byte[] event = getBytes(num);
+    return event == null ? null : EventStore.decode(event);
+  }
+
+  @Override
+  public byte[] getBytes(long num) throws IOException {
     if (cachedTail.isLessThanOrEqualTo(num, MAX_GET_SPINS)
         && cachedHead.isGreaterThanOrEqualTo(num, MAX_GET_SPINS)) {
-      try {
-        return Fs.readUtf8(paths.events.path(num));
-      } catch (NoSuchFileException e) {
-      }
+      return read(num);
     }
     return null;
   }
 
+  @Override
+  public List<String> get(long from, long to) throws IOException {
+    List<String> events = new ArrayList<>();
+    for (byte[] event : getBytes(from, to)) {
+      events.add(event == null ? null : EventStore.decode(event));
+    }
+    return events;
+  }
+
+  @Override
+  public List<byte[]> getBytes(long from, long to) throws IOException {
+    if (!isHeadAtLeast(to)) {
+      to = Math.min(to, getHead());
+    }
+    List<byte[]> events = new ArrayList<>();
+    if (from <= to) {
+      long tail = getTail();
+      for (long num = from; num <= to; num++) {
+        events.add(num < tail || num < 1 ? null : read(num));
+      }
+    }
+    return events;
+  }
+
+  /** Whether the head is known to be at least num, without reading it if possible. */
+  protected boolean isHeadAtLeast(long num) throws IOException {
+    return cachedHead.isGreaterThanOrEqualTo(num, MAX_GET_SPINS);
+  }
+
+  /** Read an event which is known to be within the bounds of the store. */
+  protected byte[] read(long num) throws IOException {
+    byte[] event = cache.getIfPresent(num);
+    if (event != null) {
+      return event;
+    }
+    long start = System.nanoTime();
+    try {
+      event = readFile(num);
+      if (event.length == 0 || event[event.length - 1] != '\n') {
+        event = EventStore.encode(EventStore.decode(event));
+      }
+      cache.put(num, event);
+      return event;
+    } catch (NoSuchFileException e) {
+      return null; // trimmed
+    } finally {
+      readLatency.record(System.nanoTime() - start, NANOSECONDS);
+    }
+  }
+
+  /** Read an event from the configured layout, or from a legacy one until it is moved. */
+  protected byte[] readFile(long num) throws IOException {
+    try {
+      return Fs.readBytes(paths.events.path(num));
+    } catch (NoSuchFileException e) {
+      if (System.currentTimeMillis() - legacyFoundAt > LAYOUT_REFRESH_MS) {
+        findLegacyLayouts(); // maybe written by a node still using another layout
+      }
+      List<DynamicRangeSharder> layouts = legacy;
+      if (layouts.isEmpty()) {
+        throw e;
+      }
+      for (DynamicRangeSharder layout : layouts) {
+        try {
+          return Fs.readBytes(layout.path(num));
+        } catch (NoSuchFileException notInLayout) { // try the next one
+        }
+      }
+      return Fs.readBytes(paths.events.path(num)); // moved while looking
+    }
+  }
+
+  /** Whether an event file exists, in the configured layout or in a legacy one. */
+  protected boolean exists(long num) {
+    if (Files.exists(paths.events.path(num))) {
+      return true;
+    }
+    for (DynamicRangeSharder layout : legacy) {
+      if (Files.exists(layout.path(num))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Find the layouts left in the store by an earlier shardOrders, which need a re-layout. */
+  protected void findLegacyLayouts() {
+    List<DynamicRangeSharder> found = new ArrayList<>();
+    try {
+      for (int orders : DynamicRangeSharder.findOrders(paths.events.base)) {
+        if (orders != paths.events.getOrders()) {
+          found.add(new DynamicRangeSharder(paths.events.base, orders));
+        }
+      }
+      legacy = found;
+    } catch (IOException e) {
+      // Keep the layouts found earlier
+    }
+    legacyFoundAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Re-layout a batch of events in the background while legacy layouts remain. Batches are
+   * triggered by the appends, so that a re-layout progresses with the load.
+   */
+  protected void relayoutIfNeeded() {
+    if (!legacy.isEmpty() && housekeeper.isBackground()) {
+      housekeeper.executeOnce(
+          paths.events,
+          () -> {
+            try {
+              relayout(RELAYOUT_BATCH);
+            } catch (IOException e) {
+              // Retried by the next batch
+            }
+          });
+    }
+  }
+
+  /**
+   * Move up to max events from the legacy layouts to the configured layout, deleting the trimmed
+   * ones instead, and the dirs left empty. Moves are atomic renames, so readers and other nodes
+   * re-laying out at the same time find each event in one of the layouts.
+   *
+   * @return the amount of events moved or deleted
+   */
+  protected long relayout(int max) throws IOException {
+    long tail = getTail();
+    List<Long> moved = new ArrayList<>();
+    long[] done = {0};
+    for (DynamicRangeSharder layout : legacy) {
+      for (Path subtree : layout.getSubtrees()) {
+        Files.walkFileTree(
+            subtree,
+            new SimpleFileVisitor<Path>() {
+              @Override
+              public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (done[0] >= max) {
+                  return FileVisitResult.TERMINATE;
+                }
+                long num;
+                try {
+                  num = Long.parseLong(file.getFileName().toString());
+                } catch (NumberFormatException e) {
+                  return FileVisitResult.CONTINUE; // not an event
+                }
+                if (num < tail) {
+                  Fs.tryDelete(file);
+                } else {
+                  Path event = paths.events.path(num);
+                  try {
+                    Fs.createDirectories(event.getParent());
+                  } catch (IOException e) {
+                    return FileVisitResult.CONTINUE;
+                  }
+                  if (Fs.tryAtomicMove(file, event)) {
+                    moved.add(num);
+                  }
+                }
+                done[0]++;
+                return FileVisitResult.CONTINUE;
+              }
+
+              @Override
+              public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // moved by another node
+              }
+
+              @Override
+              public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                try {
+                  Fs.unsafeRmdir(dir.toFile()); // only succeeds once empty
+                } catch (IOException rmdirFailed) { // deleted by another node
+                }
+                return done[0] >= max ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+              }
+            });
+      }
+    }
+    long trimmed = getTail(); // a trim may have run meanwhile and missed the moved events
+    for (long num : moved) {
+      if (num < trimmed) {
+        delete(num);
+      }
+    }
+    if (done[0] < max) {
+      findLegacyLayouts();
+    }
+    return done[0];
+  }
+
   @Override
   public long getTail() throws IOException {
     if (cachedHead.isZero(MAX_GET_SPINS)) {
@@ -140,6 +882,7 @@ public class FsStore implements EventStore {
 
   @Override
   public void trim(long trim) throws IOException {
+    long start = System.nanoTime();
     if (cachedHead.isLessThanOrEqualTo(trim, MAX_GET_SPINS)) {
       long head = getHead();
       if (trim >= head) {
@@ -147,14 +890,60 @@ public class FsStore implements EventStore {
       }
     }
     if (trim > 0) {
-      for (long i = getTail(); i <= trim; i++) {
-        long delete = stores.tail.spinIncrement(MAX_INCREMENT_SPINS) - 1;
-        Path event = paths.events.path(delete);
-        Fs.tryRecursiveDelete(event);
-        if (paths.events.isLastDirEntry(delete)) {
-          Fs.unsafeRecursiveRmdir(event.getParent().toFile());
-        }
+      long tail = getTail();
+      if (trim >= tail) {
+        stores.tail.spinAdvanceTo(trim + 1, MAX_INCREMENT_SPINS);
+        delete(tail, trim);
+        delete(paths.metadata, tail, trim);
+        evict(trim);
+      }
+    }
+    trimLatency.record(System.nanoTime() - start, NANOSECONDS);
+  }
+
+  /** Delete trimmed events, whole shard dirs at once where possible, and the dirs left empty. */
+  protected void delete(long from, long to) {
+    delete(paths.events, from, to);
+  }
+
+  /** Delete a trimmed event, and its shard dir once it is empty. */
+  protected void delete(long num) {
+    delete(paths.events, num);
+  }
+
+  /** Delete the trimmed files of a sharded tree, like delete(from, to). */
+  protected static void delete(DynamicRangeSharder sharder, long from, long to) {
+    long num = from;
+    while (num <= to) {
+      long size = sharder.dirSize(num, to);
+      if (size > 1) {
+        Path dir = sharder.dir(num, size);
+        Fs.tryRecursiveDelete(dir);
+        Fs.unsafeRecursiveRmdir(dir.getParent().toFile());
+      } else {
+        delete(sharder, num);
       }
+      num += size;
+    }
+  }
+
+  protected static void delete(DynamicRangeSharder sharder, long num) {
+    Path file = sharder.path(num);
+    Fs.tryRecursiveDelete(file);
+    if (sharder.isLastDirEntry(num)) {
+      Fs.unsafeRecursiveRmdir(file.getParent().toFile());
     }
   }
+
+  protected static void move(Path src, Path dst) throws IOException {
+    if (!Fs.tryAtomicMove(src, dst)) {
+      Fs.tryDelete(src);
+      throw new IOException("Cannot move " + src + " to " + dst);
+    }
+  }
+
+  /** Evict trimmed events from the cache. */
+  protected void evict(long trim) {
+    cache.asMap().keySet().removeIf(num -> num <= trim);
+  }
 }
@@ -47,7 +47,8 @@ public class FsTransaction {
     // unclean shutdowns.
     public long cleanInterval = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
     public int maxDelete = 5; // keep low to not slowdown current update much.
-    protected long lastClean;
+    public Housekeeper housekeeper = Housekeeper.DIRECT;
+    protected volatile long lastClean;
 
     public BasePaths(Path base) {
       this.base = base;
@@ -87,15 +88,27 @@ public class FsTransaction {
     public final Path dir;
 
     public Builder(BasePaths paths) throws IOException {
+      this(paths, null);
+    }
+
+    /** Use an existing build dir, created under paths.build earlier, or a new one if null. */
+    protected Builder(BasePaths paths, Path dir) throws IOException {
       this.paths = paths;
-      Files.createDirectories(paths.build);
-      Files.createDirectories(paths.delete);
-      dir = Files.createTempDirectory(paths.build, null);
+      if (dir == null) {
+        Files.createDirectories(paths.build);
+        Files.createDirectories(paths.delete);
+        dir = Files.createTempDirectory(paths.build, null);
+      }
+      this.dir = dir;
     }
 
     public void close() throws IOException {
-      FsTransaction.renameAndDelete(dir, paths.delete);
-      paths.autoClean();
+      if (Files.exists(dir)) { // usually moved away by a successful transaction
+        paths.housekeeper.execute(() -> tryRenameAndDelete(dir, paths.delete));
+      }
+      if (paths.needsClean()) {
+        paths.housekeeper.executeOnce(paths, paths::autoClean);
+      }
     }
   }
 
@@ -113,14 +126,31 @@ public class FsTransaction {
     }
   }
 
+  /** Like renameAndDelete(), but do NOT throw IOExceptions. */
+  public static void tryRenameAndDelete(Path src, Path del) {
+    try {
+      renameAndDelete(src, del);
+    } catch (IOException e) {
+      // Left for a later autoClean()
+    }
+  }
+
   /**
    * Used to atomically delete a directory tree when the src directory name is guaranteed to be
    * unique.
    */
   public static void renameAndDeleteUnique(Path src, Path del) {
+    renameAndDeleteUnique(src, del, Housekeeper.DIRECT);
+  }
+
+  /**
+   * Like renameAndDeleteUnique(Path, Path), but leave deleting the renamed tree to the housekeeper,
+   * the rename alone makes the src disappear atomically.
+   */
+  public static void renameAndDeleteUnique(Path src, Path del, Housekeeper housekeeper) {
     Path reparented = Fs.reparent(src, del);
     Fs.tryAtomicMove(src, reparented);
-    Fs.tryRecursiveDelete(reparented);
+    housekeeper.execute(() -> Fs.tryRecursiveDelete(reparented));
   }
 
   /**
@@ -0,0 +1,136 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a callback as soon as a file is replaced or modified, from a dedicated thread watching its
+ * directory with a WatchService.
+ *
+ * <p>A WatchService only reports the changes made by other hosts on local filesystems, so creating
+ * a watcher for a file on a network or cluster filesystem fails, and callers should poll instead.
+ */
+public class FsWatcher implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(FsWatcher.class);
+
+  /** Filesystem types on which changes made by other hosts are not reported. */
+  protected static final Set<String> REMOTE_TYPES =
+      ImmutableSet.of(
+          "9p", "afs", "ceph", "cifs", "gfs2", "glusterfs", "gpfs", "lustre", "ocfs2", "smb3",
+          "smbfs");
+
+  protected final Path file;
+  protected final Runnable onChange;
+  protected final WatchService watcher;
+
+  protected Thread thread;
+
+  /** Throws an IOException if the filesystem of the file cannot be watched. */
+  public FsWatcher(Path file, Runnable onChange) throws IOException {
+    this.file = file;
+    this.onChange = onChange;
+    Path dir = file.getParent();
+    String type = Files.getFileStore(dir).type();
+    if (isRemote(type)) {
+      throw new IOException("Cannot watch " + dir + " on a " + type + " filesystem");
+    }
+    watcher = dir.getFileSystem().newWatchService();
+    try {
+      dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+    } catch (IOException | RuntimeException e) {
+      watcher.close();
+      throw e;
+    }
+  }
+
+  public static boolean isRemote(String type) {
+    return type.startsWith("nfs") || type.startsWith("fuse") || REMOTE_TYPES.contains(type);
+  }
+
+  public synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this, toString());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public void stop() {
+    Thread t;
+    synchronized (this) {
+      t = thread;
+      thread = null;
+    }
+    try {
+      watcher.close(); // wakes up the thread
+    } catch (IOException e) {
+      log.warn("Cannot close watcher of " + file, e);
+    }
+    if (t != null) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      boolean changed = false;
+      for (WatchEvent<?> event : key.pollEvents()) {
+        changed |= event.kind() == OVERFLOW || file.getFileName().equals(event.context());
+      }
+      if (changed) {
+        try {
+          onChange.run();
+        } catch (RuntimeException e) {
+          log.error("Cannot run callback for change of " + file, e);
+        }
+      }
+      if (!key.reset()) {
+        log.warn("Cannot watch " + file + " anymore");
+        return;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Events FS Watcher";
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Coalesce concurrent submissions into batches so that they may be committed together.
+ *
+ * <p>Submitters queue their entries and block until they have been committed. The first submitter
+ * to find no commit in progress becomes the leader, it optionally waits up to a window for more
+ * entries to be queued, and then commits up to maxSize queued entries at once on behalf of all
+ * their submitters. Entries queued while a commit is in progress are picked up by the next leader,
+ * so under contention batches form naturally even without a window.
+ */
+public class GroupCommit<T> {
+  public interface Committer<T> {
+    void commit(List<T> entries) throws IOException;
+  }
+
+  protected static class Pending<T> {
+    protected final T entry;
+    protected boolean done;
+    protected IOException failure;
+
+    protected Pending(T entry) {
+      this.entry = entry;
+    }
+  }
+
+  protected final Committer<T> committer;
+  protected final int maxSize;
+  protected final long windowMs;
+
+  protected final List<Pending<T>> queued = new LinkedList<>();
+  protected boolean committing;
+
+  public long totalCommits;
+  public long totalEntries;
+
+  /**
+   * @param committer commits a batch of entries
+   * @param maxSize maximum amount of entries to commit at once
+   * @param windowMs how long a leader waits for more entries before committing
+   */
+  public GroupCommit(Committer<T> committer, int maxSize, long windowMs) {
+    this.committer = committer;
+    this.maxSize = maxSize < 1 ? 1 : maxSize;
+    this.windowMs = windowMs < 0 ? 0 : windowMs;
+  }
+
+  /** Submit an entry and wait until it has been committed (possibly by another thread). */
+  public void submit(T entry) throws IOException {
+    Pending<T> pending = new Pending<>(entry);
+    boolean interrupted = false;
+    try {
+      synchronized (this) {
+        queued.add(pending);
+        notifyAll(); // A leader might be waiting to fill its window
+      }
+      while (true) {
+        List<Pending<T>> batch;
+        synchronized (this) {
+          while (committing && !pending.done) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              // The entry is queued and will get committed regardless, finish waiting for it.
+              interrupted = true;
+            }
+          }
+          if (pending.done) {
+            break;
+          }
+          committing = true;
+          interrupted |= waitForWindow();
+          batch = takeBatch();
+        }
+        commit(batch);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (pending.failure != null) {
+      throw new IOException("Cannot commit entry", pending.failure);
+    }
+  }
+
+  /** Must be called while synchronized. Return whether the wait was interrupted. */
+  protected boolean waitForWindow() {
+    long end = System.currentTimeMillis() + windowMs;
+    long remaining = windowMs;
+    while (queued.size() < maxSize && remaining > 0) {
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        return true;
+      }
+      remaining = end - System.currentTimeMillis();
+    }
+    return false;
+  }
+
+  /** Must be called while synchronized. */
+  protected List<Pending<T>> takeBatch() {
+    List<Pending<T>> batch = new ArrayList<>(Math.min(queued.size(), maxSize));
+    for (Iterator<Pending<T>> it = queued.iterator(); it.hasNext() && batch.size() < maxSize; ) {
+      batch.add(it.next());
+      it.remove();
+    }
+    return batch;
+  }
+
+  protected void commit(List<Pending<T>> batch) {
+    List<T> entries = new ArrayList<>(batch.size());
+    for (Pending<T> p : batch) {
+      entries.add(p.entry);
+    }
+    IOException failure = new IOException("Commit did not complete");
+    try {
+      committer.commit(entries);
+      failure = null;
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new IOException(e);
+    } finally {
+      synchronized (this) {
+        for (Pending<T> p : batch) {
+          p.failure = failure;
+          p.done = true;
+        }
+        totalCommits++;
+        totalEntries += entries.size();
+        committing = false;
+        notifyAll();
+      }
+    }
+  }
+}
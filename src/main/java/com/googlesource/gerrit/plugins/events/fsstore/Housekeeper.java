@@ -0,0 +1,140 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the housekeeping of the transactions (deleting the dirs renamed into the delete dir,
+ * expiring preserved links, cleaning stale build dirs) off the update paths.
+ *
+ * <p>Housekeeping is never needed for correctness, the renames which are needed stay on the
+ * update paths. Tasks are run by a single background thread, which exits when idle. The backlog is
+ * bounded, once it is full, tasks are run by the caller instead, so housekeeping cannot fall
+ * behind indefinitely. A housekeeper with a maxBacklog of 0 always runs the tasks in the caller,
+ * as does a housekeeper which has been shut down.
+ *
+ * <p>Unlike the executors of the EventStoreWriter and the RetentionService, this one is not created
+ * through the Gerrit WorkQueue (so it is not listed by show-queue): WorkQueue executors have
+ * unbounded queues, which would defeat the bounded backlog, and stores are also created outside of
+ * Guice, for example when a SegmentStore adopts an FsStore. Its thread is a daemon so that it never
+ * holds up the JVM, and the plugin shuts it down when it stops.
+ */
+public class Housekeeper {
+  private static final Logger log = LoggerFactory.getLogger(Housekeeper.class);
+
+  public static final int DEFAULT_MAX_BACKLOG = 1000;
+
+  public static final Housekeeper DIRECT = new Housekeeper(0);
+
+  protected static final long KEEP_ALIVE = 1; // s
+
+  protected final ThreadPoolExecutor executor; // null runs tasks in the caller
+  protected final Set<Object> pending = ConcurrentHashMap.newKeySet();
+
+  /** Tasks run, for metrics. */
+  public final AtomicLong tasks = new AtomicLong();
+
+  /** Tasks run by the caller because the backlog was full, for metrics. */
+  public final AtomicLong overflows = new AtomicLong();
+
+  public Housekeeper(int maxBacklog) {
+    if (maxBacklog < 1) {
+      executor = null;
+      return;
+    }
+    executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE,
+            SECONDS,
+            new ArrayBlockingQueue<>(maxBacklog),
+            r -> {
+              Thread thread = new Thread(r, toString());
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Run a task in the background, or in the caller when the backlog is full. */
+  public void execute(Runnable task) {
+    if (isBackground()) {
+      try {
+        executor.execute(() -> run(task));
+        return;
+      } catch (RejectedExecutionException e) {
+        overflows.incrementAndGet();
+      }
+    }
+    run(task);
+  }
+
+  /**
+   * Like execute(), but skip the task while an earlier one with the same key is still pending, for
+   * tasks which are requested after every update but need not run that often.
+   */
+  public void executeOnce(Object key, Runnable task) {
+    if (pending.add(key)) {
+      execute(
+          () -> {
+            pending.remove(key);
+            task.run();
+          });
+    }
+  }
+
+  /** Whether tasks are run in the background, rather than by the caller. */
+  public boolean isBackground() {
+    return executor != null && !executor.isShutdown();
+  }
+
+  /** Tasks waiting to be run. */
+  public int getBacklog() {
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  protected void run(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      // Housekeeping is best effort, it will be retried by later tasks.
+      log.warn("Housekeeping task failed", e);
+    }
+    tasks.incrementAndGet();
+  }
+
+  /** Stop the background thread once the queued tasks have run, later tasks run in the caller. */
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Events FS Housekeeper";
+  }
+}
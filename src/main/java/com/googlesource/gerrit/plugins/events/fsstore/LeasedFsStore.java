@@ -0,0 +1,449 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.events.EventMetadata;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An FsStore which leases blocks of event numbers to nodes, so that nodes only contend on the
+ * filesystem once per block instead of once per event (Multi-Master safe).
+ *
+ * <p>A node leases the next block of leaseSize numbers by incrementing the leases sequence, and
+ * then stores its events in the shard tree under the numbers of its block without coordinating
+ * with other nodes. A block is closed with a marker holding its last used number once it is full,
+ * once its node has no more events waiting to be stored, or once its lease expires. The unused
+ * numbers of a closed block are gaps.
+ *
+ * <p>Since blocks are filled concurrently, events are not readable in number order. The head is
+ * instead a watermark: the highest number up to which every number is either a stored event or a
+ * gap. Each reader advances its watermark by looking for the next event or the closed marker of
+ * its block. Leases which stay open longer than leaseTimeout, because their node died, are closed
+ * by readers at their last stored event. A watermark hint is saved now and then so that readers
+ * do not have to start from the beginning.
+ *
+ * <p>The event numbers up to the head of the store when leasing was first enabled keep being
+ * served from the regular head, so a store can switch to leasing. All the nodes of a site must
+ * switch at once, and a store cannot switch back.
+ *
+ * <p>Layout: the FsStore layout, and:
+ *
+ * <p>lease-start/, lease-size/ - the last number before the first block, and the block size
+ *
+ * <p>leases/ - the sequence of leased blocks
+ *
+ * <p>blocks/<block>.open, blocks/<block>.closed - the lease and closed markers of the blocks
+ *
+ * <p>watermark - the watermark hint
+ */
+@Singleton
+public class LeasedFsStore extends FsStore {
+  private static final Logger log = LoggerFactory.getLogger(LeasedFsStore.class);
+
+  protected static final String OPEN = ".open";
+  protected static final String CLOSED = ".closed";
+
+  protected static class Lease {
+    protected final long block;
+    protected final long last;
+    protected final long leasedAt = System.nanoTime();
+    protected long next;
+
+    protected Lease(long block, long first, long last) {
+      this.block = block;
+      this.next = first;
+      this.last = last;
+    }
+  }
+
+  protected final FsSequence leases;
+  protected final long start;
+  protected final long size;
+  protected final long leaseTimeout;
+  protected final Path blocks;
+  protected final Path hint;
+
+  protected final Map<Long, Long> closed = new ConcurrentHashMap<>(); // block -> last number
+  protected final AtomicInteger waiting = new AtomicInteger();
+  protected Lease lease; // sync on this
+
+  protected final Object headLock = new Object();
+  protected long watermark = -1; // sync on headLock
+  protected long watermarkAt; // System.nanoTime() when it was last computed, sync on headLock
+  protected long lastHintWrite; // sync on headLock
+  protected long lastLeaseCheck; // sync on headLock
+
+  @Inject
+  public LeasedFsStore(
+      SitePaths site,
+      PluginConfigFactory cfg,
+      @PluginName String pluginName,
+      @Named(CACHE_NAME) Cache<Long, byte[]> cache,
+      MetricMaker metricMaker)
+      throws IOException {
+    this(getBase(site), new Config(cfg.getFromGerritConfig(pluginName)), cache, metricMaker);
+  }
+
+  public LeasedFsStore(Path base, Config config) throws IOException {
+    this(base, config, newCache());
+  }
+
+  public LeasedFsStore(Path base, Config config, Cache<Long, byte[]> cache) throws IOException {
+    this(base, config, cache, new DisabledMetricMaker());
+  }
+
+  public LeasedFsStore(
+      Path base, Config config, Cache<Long, byte[]> cache, MetricMaker metricMaker)
+      throws IOException {
+    super(base, config, cache, metricMaker);
+    leaseTimeout = config.leaseTimeout;
+    blocks = base.resolve("blocks");
+    hint = base.resolve("watermark");
+    Files.createDirectories(blocks);
+
+    // The first node to enable leasing decides where the blocks start and their size.
+    FsSequence leaseStart = new FsSequence(base.resolve("lease-start"));
+    leaseStart.initFs(stores.head.spinGet(MAX_GET_SPINS));
+    start = leaseStart.spinGet(MAX_GET_SPINS);
+    FsSequence leaseSize = new FsSequence(base.resolve("lease-size"));
+    leaseSize.initFs((long) Math.max(config.leaseSize, 1));
+    size = leaseSize.spinGet(MAX_GET_SPINS);
+    leases = new FsSequence(base.resolve("leases"));
+    leases.initFs();
+    leases.setBackoff(config.newBackoff());
+    leases.setHousekeeper(housekeeper);
+    leases.setBuildPool(config.getBuildPoolSize());
+  }
+
+  @Override
+  public void add(String event, EventMetadata metadata) throws IOException {
+    addAll(Collections.singletonList(event), Collections.singletonList(metadata));
+  }
+
+  @Override
+  public void addAll(List<String> events, List<EventMetadata> metadata) throws IOException {
+    if (events.isEmpty()) {
+      return;
+    }
+    long started = System.nanoTime();
+    waiting.incrementAndGet();
+    synchronized (this) {
+      waiting.decrementAndGet();
+      try {
+        for (int i = 0; i < events.size(); i++) {
+          storeMetadata(store(events.get(i)), metadata == null ? null : metadata.get(i));
+        }
+      } finally {
+        // Keep the lease while events are waiting, otherwise close it so that the events of
+        // other nodes in later blocks do not wait for this one to fill.
+        if (lease != null && waiting.get() == 0) {
+          close(lease);
+          lease = null;
+        }
+      }
+    }
+    relayoutIfNeeded();
+    addLatency.record(System.nanoTime() - started, NANOSECONDS);
+  }
+
+  /** Must be synchronized. Returns the number of the event. */
+  protected long store(String event) throws IOException {
+    while (true) {
+      long n = allocate();
+      Path tmp = Files.createTempFile(build, "event", null);
+      Fs.writeUtf8(tmp, event + "\n");
+      Path destination = stores.head.getEventDestination(n);
+      move(tmp, destination);
+      // A slow write might have been overtaken by a reader closing the expired lease. Always check,
+      // readers judge the expiry by the file times, which the local clock may disagree with.
+      Long last = getClosed(lease.block);
+      if (last == null || n <= last) {
+        return n;
+      }
+      log.warn("Lease of block " + lease.block + " was closed while storing " + n + ", retrying");
+      Fs.tryDelete(destination);
+      lease = null; // it is closed already
+    }
+  }
+
+  /** Must be synchronized. */
+  protected long allocate() throws IOException {
+    if (lease != null && (lease.next > lease.last || isExpiring(lease))) {
+      close(lease);
+      lease = null;
+    }
+    if (lease == null) {
+      long block = leases.spinIncrement(MAX_SUBMIT_SPINS); // contended like submitting events
+      createOpenMarker(block);
+      lease = new Lease(block, first(block), last(block));
+    }
+    return lease.next++;
+  }
+
+  /** Leases must not be used past half their timeout, so that readers do not close them early. */
+  protected boolean isExpiring(Lease lease) {
+    return System.nanoTime() - lease.leasedAt > MILLISECONDS.toNanos(leaseTimeout) / 2;
+  }
+
+  protected void close(Lease lease) throws IOException {
+    close(lease.block, lease.next - 1);
+  }
+
+  /** Close a block, unless it is already closed. Numbers after last are gaps. */
+  protected void close(long block, long last) throws IOException {
+    Path tmp = Files.createTempFile(build, "closed", null);
+    try {
+      Fs.writeUtf8(tmp, Long.toString(Math.max(last, first(block) - 1)));
+      Fs.tryCreateLink(closedMarker(block), tmp); // only the first close counts
+    } finally {
+      Fs.tryDelete(tmp);
+    }
+  }
+
+  protected void createOpenMarker(long block) throws IOException {
+    try {
+      Files.createFile(openMarker(block));
+    } catch (FileAlreadyExistsException e) {
+    }
+  }
+
+  /** Get the last number of a closed block, or null if it is still open. */
+  protected Long getClosed(long block) throws IOException {
+    Long last = closed.get(block);
+    if (last == null) {
+      try {
+        last = Long.parseLong(Fs.readUtf8(closedMarker(block)).trim());
+        closed.put(block, last); // closed markers never change
+      } catch (NoSuchFileException e) {
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid closed marker for block " + block, e);
+      }
+    }
+    return last;
+  }
+
+  @Override
+  public long getHead() throws IOException {
+    synchronized (headLock) {
+      long computedAt = System.nanoTime();
+      long head = watermark;
+      if (head < 0) {
+        head = Math.max(start, Math.max(readHint(), stores.tail.spinGet(MAX_GET_SPINS) - 1));
+      }
+      while (true) {
+        long n = head + 1;
+        if (exists(n)) {
+          head = n;
+          continue;
+        }
+        long block = block(n);
+        if (getClosed(block) != null) {
+          head = last(block); // the rest of the block are gaps
+          continue;
+        }
+        if (!closeIfExpired(block)) {
+          break;
+        }
+      }
+      watermarkAt = computedAt;
+      if (head > watermark) {
+        watermark = head;
+        writeHintIfDue();
+      }
+      headReadLatency.record(System.nanoTime() - computedAt, NANOSECONDS);
+      return head;
+    }
+  }
+
+  @Override
+  protected List<UpdatableFileValue<Long>> getSequences() {
+    return Arrays.asList(stores.head, stores.tail, leases);
+  }
+
+  @Override
+  public Path getHeadFile() {
+    return null; // events are stored without advancing a file
+  }
+
+  @Override
+  public long getHead(long maxAge, TimeUnit unit) throws IOException {
+    synchronized (headLock) {
+      if (watermark >= 0 && System.nanoTime() - watermarkAt < unit.toNanos(maxAge)) {
+        return watermark;
+      }
+    }
+    return getHead();
+  }
+
+  @Override
+  public boolean hasHeadChanged(long head) throws IOException {
+    return getHead() != head;
+  }
+
+  @Override
+  protected boolean isHeadAtLeast(long num) throws IOException {
+    synchronized (headLock) {
+      if (watermark >= num) {
+        return true;
+      }
+    }
+    return getHead() >= num;
+  }
+
+  /** Close the block if its lease has expired, return whether it is closed. Must hold headLock. */
+  protected boolean closeIfExpired(long block) throws IOException {
+    Path open = openMarker(block);
+    if (Files.exists(open)) {
+      if (!Fs.isOlderThan(open, Fs.getFileTimeAgo(leaseTimeout, MILLISECONDS))) {
+        return false;
+      }
+      long last = last(block);
+      while (last >= first(block) && !exists(last)) {
+        last--;
+      }
+      log.warn("Closing expired lease of block " + block + " at " + last);
+      close(block, last);
+      return true;
+    }
+    // Not leased yet, or leased by a node which died before creating the open marker. Create it
+    // for the latter, so that the lease expires.
+    long now = System.currentTimeMillis();
+    if (now - lastLeaseCheck > leaseTimeout) {
+      lastLeaseCheck = now;
+      if (leases.spinGet(MAX_GET_SPINS) >= block) {
+        createOpenMarker(block);
+      }
+    }
+    return false;
+  }
+
+  /** Must hold headLock. */
+  protected void writeHintIfDue() {
+    long now = System.currentTimeMillis();
+    if (now - lastHintWrite > leaseTimeout) {
+      lastHintWrite = now;
+      try {
+        Path tmp = Files.createTempFile(build, "watermark", null);
+        Fs.writeUtf8(tmp, Long.toString(watermark));
+        move(tmp, hint);
+      } catch (IOException e) {
+        log.warn("Cannot update watermark hint " + hint, e);
+      }
+    }
+  }
+
+  protected long readHint() throws IOException {
+    try {
+      return Long.parseLong(Fs.readUtf8(hint).trim());
+    } catch (NoSuchFileException | NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public long getTail() throws IOException {
+    if (getHead() == 0) {
+      return 0;
+    }
+    long tail = cachedTail.spinGet(MAX_GET_SPINS);
+    return tail < 1 ? 1 : tail;
+  }
+
+  @Override
+  public byte[] getBytes(long num) throws IOException {
+    if (num >= 1 && num >= getTail() && num <= getHead()) {
+      return read(num);
+    }
+    return null;
+  }
+
+  @Override
+  protected byte[] read(long num) throws IOException {
+    if (num > start) {
+      Long last = getClosed(block(num));
+      if (last != null && num > last) {
+        return null; // a gap, no need to look for it
+      }
+    }
+    return super.read(num);
+  }
+
+  @Override
+  public void trim(long trim) throws IOException {
+    long started = System.nanoTime();
+    long head = getHead();
+    if (trim >= head) {
+      trim = head - 1;
+    }
+    long tail = getTail();
+    if (trim > 0 && trim >= tail) {
+      stores.tail.spinAdvanceTo(trim + 1, MAX_INCREMENT_SPINS);
+      delete(tail, trim);
+      delete(paths.metadata, tail, trim);
+      for (long block = Math.max(block(tail), 1); last(block) <= trim; block++) {
+        Fs.tryDelete(closedMarker(block));
+        Fs.tryDelete(openMarker(block));
+        closed.remove(block);
+      }
+      evict(trim);
+    }
+    trimLatency.record(System.nanoTime() - started, NANOSECONDS);
+  }
+
+  protected long block(long n) {
+    return n <= start ? 0 : (n - start - 1) / size + 1;
+  }
+
+  protected long first(long block) {
+    return start + (block - 1) * size + 1;
+  }
+
+  protected long last(long block) {
+    return start + block * size;
+  }
+
+  protected Path openMarker(long block) {
+    return blocks.resolve(block + OPEN);
+  }
+
+  protected Path closedMarker(long block) {
+    return blocks.resolve(block + CLOSED);
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counters stored in a memory mapped file, for processes on a single host ONLY (memory mappings of
+ * a file are not coherent across NFS clients).
+ *
+ * <p>Updaters serialize with locked(), which holds a lock shared by all the counters of the file in
+ * this JVM, and a FileChannel lock on the file for other processes. Counters only ever advance,
+ * they are updated with a CAS on the mapping, so readers may read them at any time without
+ * locking.
+ */
+public class LocalCounters {
+  public interface Locked<T> {
+    T run() throws IOException;
+  }
+
+  protected static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  /** FileChannel locks are held by the JVM, so they cannot serialize threads of the same JVM. */
+  protected static final Map<Path, Object> jvmLocks = new ConcurrentHashMap<>();
+
+  protected final Path file;
+  protected final FileChannel channel;
+  protected final MappedByteBuffer mapped;
+  protected final Object jvmLock;
+
+  public LocalCounters(Path file, int counters) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file, CREATE, READ, WRITE);
+    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) counters * Long.BYTES);
+    jvmLock = jvmLocks.computeIfAbsent(file.toAbsolutePath().normalize(), p -> new Object());
+  }
+
+  public long get(int counter) {
+    return (long) LONGS.getVolatile(mapped, counter * Long.BYTES);
+  }
+
+  /** Advance the counter to value unless it is already past it, return the resulting value. */
+  public long advance(int counter, long value) {
+    int index = counter * Long.BYTES;
+    while (true) {
+      long current = (long) LONGS.getVolatile(mapped, index);
+      if (current >= value) {
+        return current;
+      }
+      if (LONGS.compareAndSet(mapped, index, current, value)) {
+        return value;
+      }
+    }
+  }
+
+  /** Run op exclusively from all other processes and threads using the counters of this file. */
+  public <T> T locked(Locked<T> op) throws IOException {
+    synchronized (jvmLock) {
+      FileLock lock = channel.lock();
+      try {
+        return op.run();
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.events.EventMetadata;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+
+/**
+ * An FsStore for sites where all the Gerrit processes run on a single host, NOT Multi-Master safe.
+ *
+ * <p>Instead of advancing the head and tail sequences with the 6 phase UpdatableFileValue
+ * transaction, the head and tail are kept in memory mapped counters (see LocalCounters) and
+ * advanced under a file lock. The events are stored in the same shard tree as the FsStore, and the
+ * head and tail value files are kept up to date before the counters are advanced, so a site can
+ * switch back to the FsStore at any time. When starting, the counters catch up with the value files
+ * in case the FsStore was used in the meantime.
+ *
+ * <p>Layout: the FsStore layout, and:
+ *
+ * <p>counters - the memory mapped head and tail counters
+ */
+@Singleton
+public class LocalFsStore extends FsStore {
+  protected static final int HEAD = 0;
+  protected static final int TAIL = 1;
+
+  protected final LocalCounters counters;
+
+  @Inject
+  public LocalFsStore(
+      SitePaths site,
+      PluginConfigFactory cfg,
+      @PluginName String pluginName,
+      @Named(CACHE_NAME) Cache<Long, byte[]> cache,
+      MetricMaker metricMaker)
+      throws IOException {
+    this(getBase(site), new Config(cfg.getFromGerritConfig(pluginName)), cache, metricMaker);
+  }
+
+  public LocalFsStore(Path base) throws IOException {
+    this(base, new Config());
+  }
+
+  public LocalFsStore(Path base, Config config) throws IOException {
+    this(base, config, newCache());
+  }
+
+  public LocalFsStore(Path base, Config config, Cache<Long, byte[]> cache) throws IOException {
+    this(base, config, cache, new DisabledMetricMaker());
+  }
+
+  public LocalFsStore(
+      Path base, Config config, Cache<Long, byte[]> cache, MetricMaker metricMaker)
+      throws IOException {
+    super(base, config, cache, metricMaker);
+    counters = new LocalCounters(base.resolve("counters"), 2);
+    init();
+  }
+
+  protected void init() throws IOException {
+    Files.createDirectories(build);
+    counters.locked(
+        () -> {
+          counters.advance(HEAD, stores.head.spinGet(MAX_GET_SPINS));
+          counters.advance(TAIL, stores.tail.spinGet(MAX_GET_SPINS));
+          return null;
+        });
+  }
+
+  @Override
+  public void add(String event, EventMetadata metadata) throws IOException {
+    addAll(Collections.singletonList(event), Collections.singletonList(metadata));
+  }
+
+  @Override
+  public void addAll(List<String> events, List<EventMetadata> metadata) throws IOException {
+    if (events.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    counters.locked(
+        () -> {
+          long first = counters.get(HEAD) + 1;
+          long head = first - 1;
+          for (String event : events) {
+            Path tmp = Files.createTempFile(build, "event", null);
+            Fs.writeUtf8(tmp, event + "\n");
+            move(tmp, stores.head.getEventDestination(++head));
+          }
+          publish(stores.head, head);
+          counters.advance(HEAD, head);
+          for (int i = 0; metadata != null && i < metadata.size(); i++) {
+            storeMetadata(first + i, metadata.get(i));
+          }
+          return null;
+        });
+    relayoutIfNeeded();
+    addLatency.record(System.nanoTime() - start, NANOSECONDS);
+  }
+
+  @Override
+  public long getHead() throws IOException {
+    return counters.get(HEAD);
+  }
+
+  @Override
+  public long getHead(long maxAge, TimeUnit unit) throws IOException {
+    return getHead(); // as cheap as it gets
+  }
+
+  @Override
+  public boolean hasHeadChanged(long head) throws IOException {
+    return getHead() != head;
+  }
+
+  @Override
+  protected boolean isHeadAtLeast(long num) throws IOException {
+    return getHead() >= num;
+  }
+
+  @Override
+  public long getTail() throws IOException {
+    if (getHead() == 0) {
+      return 0;
+    }
+    long tail = counters.get(TAIL);
+    return tail < 1 ? 1 : tail;
+  }
+
+  @Override
+  public byte[] getBytes(long num) throws IOException {
+    if (num >= 1 && num >= getTail() && num <= getHead()) {
+      return read(num);
+    }
+    return null;
+  }
+
+  @Override
+  public void trim(long trim) throws IOException {
+    long start = System.nanoTime();
+    long trimmed =
+        counters.locked(
+            () -> {
+              long last = Math.min(trim, counters.get(HEAD) - 1);
+              long tail = Math.max(counters.get(TAIL), 1);
+              if (last >= tail) {
+                publish(stores.tail, last + 1);
+                counters.advance(TAIL, last + 1);
+                delete(tail, last);
+                delete(paths.metadata, tail, last);
+              }
+              return last;
+            });
+    evict(trimmed);
+    trimLatency.record(System.nanoTime() - start, NANOSECONDS);
+  }
+
+  /** Update a value file without a transaction, must be locked. */
+  protected void publish(UpdatableFileValue<Long> value, long n) throws IOException {
+    Path tmp = Files.createTempFile(build, "value", null);
+    value.prepareT(tmp, n);
+    if (!value.update(tmp)) {
+      Fs.tryDelete(tmp);
+      throw new IOException("Cannot update " + value.path);
+    }
+  }
+}
@@ -15,15 +15,27 @@
 package com.googlesource.gerrit.plugins.events.fsstore;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache the last known value of the sequence and use it to speed up certain comparisons by taking
  * advantage of the fact that sequences can only ever increase.
+ *
+ * <p>The cached value only ever advances (with a CAS), so it may be read without locking. Callers
+ * which can tolerate a slightly stale value may also use get() with a freshness window, inside
+ * which the cached value is returned without reading the sequence.
+ *
+ * <p>Pollers may use hasChanged() to check whether the sequence changed with a single stat of its
+ * value file, which is replaced on every update, instead of reading it.
  */
 public class SequenceCache {
   protected final UpdatableFileValue<Long> updatable;
 
-  protected long cachedValue = 0;
+  protected final AtomicLong cachedValue = new AtomicLong();
+  protected volatile long refreshedAt; // System.nanoTime() at the start of the last read
+  protected volatile boolean refreshed;
+  protected volatile Object readKey; // the change key of the value file before the last read
 
   /** UpdatableFileValue<Long> must be an increasing sequence */
   public SequenceCache(UpdatableFileValue<Long> updatable) {
@@ -31,17 +43,45 @@ public class SequenceCache {
   }
 
   public Long spinGet(long maxTries) throws IOException {
-    long value = updatable.spinGet(maxTries);
-    synchronized (this) {
-      if (value > cachedValue) {
-        cachedValue = value;
-      } else {
-        value = cachedValue;
-      }
+    long start = System.nanoTime();
+    Object key = Fs.getChangeKey(updatable.path);
+    long value = advance(updatable.spinGet(maxTries));
+    readKey = key; // a racing older key can only make hasChanged() return true
+    if (!refreshed || start - refreshedAt > 0) {
+      refreshedAt = start; // racy, but a lost update only makes the window end sooner
+      refreshed = true;
     }
     return value;
   }
 
+  /**
+   * Get the value, from the cache if it was read from the sequence less than maxAge ago, so it may
+   * be stale by up to maxAge.
+   */
+  public long get(long maxAge, TimeUnit unit, long maxTries) throws IOException {
+    if (refreshed && System.nanoTime() - refreshedAt < unit.toNanos(maxAge)) {
+      return cachedValue.get();
+    }
+    return spinGet(maxTries);
+  }
+
+  /**
+   * Whether the sequence might have changed from value, which the caller got from this cache.
+   * Unless the sequence was last read more than maxUnread ago, this only compares the change key
+   * of its value file with the one it had when it was last read. NFS clients cache attributes, so
+   * maxUnread bounds how late a change may be noticed.
+   */
+  public boolean hasChanged(long value, long maxUnread, TimeUnit unit) {
+    Object key = readKey; // before cachedValue, which is advanced before readKey is set
+    if (key == null
+        || cachedValue.get() != value
+        || !refreshed
+        || System.nanoTime() - refreshedAt >= unit.toNanos(maxUnread)) {
+      return true;
+    }
+    return !key.equals(Fs.getChangeKey(updatable.path));
+  }
+
   public boolean isZero(long maxTries) throws IOException {
     return isEqualTo(0L, maxTries);
   }
@@ -66,11 +106,16 @@ public class SequenceCache {
     return !cachedGreaterThan(num) && spinGet(maxTries) <= num;
   }
 
-  protected synchronized boolean cachedGreaterThan(long num) {
-    return cachedValue > num;
+  protected boolean cachedGreaterThan(long num) {
+    return cachedValue.get() > num;
+  }
+
+  protected boolean cachedGreaterThanOrEqualTo(long num) {
+    return cachedValue.get() >= num;
   }
 
-  protected synchronized boolean cachedGreaterThanOrEqualTo(long num) {
-    return cachedValue >= num;
+  /** Advance the cached value to value unless it is already past it, return the resulting value. */
+  protected long advance(long value) {
+    return cachedValue.accumulateAndGet(value, Math::max);
   }
 }
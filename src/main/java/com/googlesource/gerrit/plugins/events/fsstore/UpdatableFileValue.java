@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.events.fsstore;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
@@ -22,6 +23,7 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An infrastructure to create updates to a FileValue using a 6 phase transaction which is multi
@@ -55,6 +57,7 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
   public static class BasePaths extends FsTransaction.BasePaths {
     public final Path update;
     public final Path preserved;
+    public BuildPool pool = BuildPool.NONE;
 
     public BasePaths(Path base) {
       super(base);
@@ -65,14 +68,28 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
 
   /** For Phase 1 */
   protected static class UpdateBuilder extends FsTransaction.Builder {
-    public final String uuid = UUID.randomUUID().toString();
-    public final Path udir = dir.resolve(uuid);
+    public final String uuid;
+    public final Path udir;
     public final Path next;
 
     public UpdateBuilder(BasePaths paths) throws IOException {
-      super(paths);
+      this(paths, paths.pool.take(null), UUID.randomUUID().toString());
+    }
+
+    /** The uuid must be unique, it is used as the name of the transaction. */
+    public UpdateBuilder(BasePaths paths, String uuid) throws IOException {
+      this(paths, paths.pool.take(uuid), uuid);
+    }
+
+    protected UpdateBuilder(BasePaths paths, BuildPool.Tree pooled, String uuid)
+        throws IOException {
+      super(paths, pooled == null ? null : pooled.dir);
+      this.uuid = pooled == null ? uuid : pooled.uuid;
+      udir = dir.resolve(this.uuid);
       next = udir.resolve(NEXT);
-      Files.createDirectories(next); // build/<tmp>/<uuid>/next
+      if (pooled == null) {
+        Files.createDirectories(next); // build/<tmp>/<uuid>/next
+      }
     }
   }
 
@@ -139,7 +156,15 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
       upaths = new UpdatePaths(updatable.paths.update, uuid);
 
       currentValue = spinGet();
-      next = currentValue == null ? null : updatable.getToValue(currentValue);
+      next = currentValue == null ? null : getToValue(currentValue);
+    }
+
+    /**
+     * Determine the proposed value for this update. Called during construction, so overrides may
+     * only rely on the fields of this base class.
+     */
+    protected T getToValue(T currentValue) {
+      return updatable.getToValue(currentValue);
     }
 
     /** Spin attempting phases 3 - 6 */
@@ -164,6 +189,7 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
           return updatable.get(); // Phase 2
         } catch (IOException e) {
           Nfs.throwIfNotStaleFileHandle(e);
+          updatable.staleFileHandles.incrementAndGet();
           finished = !Files.exists(upaths.udir);
           if (finished) {
             // stale handle must have been caused by another actor completing instead
@@ -224,8 +250,10 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
     /** Contains phase 6 */
     protected void clean() {
       if (committed) {
-        FsTransaction.renameAndDeleteUnique(upaths.udir, updatable.paths.delete); // Phase 6
-        updatable.cleanPreserved();
+        Housekeeper housekeeper = updatable.paths.housekeeper;
+        FsTransaction.renameAndDeleteUnique(
+            upaths.udir, updatable.paths.delete, housekeeper); // Phase 6
+        housekeeper.executeOnce(updatable.paths.preserved, updatable::cleanPreserved);
       }
       finished = !Files.exists(upaths.udir);
     }
@@ -245,6 +273,13 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
   }
 
   protected final BasePaths paths;
+  protected Backoff backoff = Backoff.NONE;
+
+  /** Failed tries to start a transaction, for metrics. */
+  public final AtomicLong spins = new AtomicLong();
+
+  /** Ongoing transactions of other actors taken over to complete them, for metrics. */
+  public final AtomicLong takeovers = new AtomicLong();
 
   public UpdatableFileValue(Path base) {
     super(base.resolve(VALUE)); // value(val)
@@ -268,6 +303,31 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
     Fs.tryDelete(paths.update.resolve(INIT)); // cleanup
   }
 
+  /** Set how spin loops wait between their contended tries, and when they give up. */
+  public void setBackoff(Backoff backoff) {
+    this.backoff = backoff;
+  }
+
+  /** Set who deletes the transactions once they are done, and expires the preserved links. */
+  public void setHousekeeper(Housekeeper housekeeper) {
+    paths.housekeeper = housekeeper;
+  }
+
+  protected Housekeeper getHousekeeper() {
+    return paths.housekeeper;
+  }
+
+  /** Start updates from a pool of up to size ready build trees, 0 disables pooling. */
+  public void setBuildPool(int size) {
+    paths.pool = size > 0 ? new BuildPool(paths, size) : BuildPool.NONE;
+  }
+
+  /** Back off after a failed try to start a transaction. */
+  protected void failed(Backoff.Spin spin, long tries) throws InterruptedIOException {
+    spins.incrementAndGet();
+    spin.failed(tries);
+  }
+
   protected abstract T getToValue(T currentValue);
 
   protected UniqueUpdate<T> completeOngoing(long maxTries) throws IOException {
@@ -275,6 +335,7 @@ public abstract class UpdatableFileValue<T> extends NfsFileValue<T> {
       Path ongoing = Nfs.getFirstDirEntry(paths.update);
       if (ongoing != null) {
         // Attempt to complete previous updates
+        takeovers.incrementAndGet();
         return createUniqueUpdate(Fs.basename(ongoing).toString(), false, maxTries);
       }
     }
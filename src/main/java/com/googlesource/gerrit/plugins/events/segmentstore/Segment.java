@@ -0,0 +1,252 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.segmentstore;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.googlesource.gerrit.plugins.events.EventStore;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * An append only log file of events, and its offset index.
+ *
+ * <p>The log file, "<first>.log", contains the UTF_8 encoded events one after another. The index
+ * file, "<first>.idx", contains one fixed width entry per event: the offset in the log file right
+ * after the end of the event (the start of the event is the end of the previous one, or 0). Event
+ * number n is thus at index entry n - first.
+ *
+ * <p>The index is only ever written after the events it refers to have been forced to the log, so
+ * an event becomes readable (committed) once its index entry is complete, even after an OS crash. A partial index entry, or
+ * log data beyond the end of the last index entry, left behind by an interrupted append, is ignored
+ * by readers and overwritten by the next append. An empty event (a lone newline) is a gap, a
+ * missing event.
+ *
+ * <p>Readers memory map the index, so looking up an event is an array access, and then read the
+ * event with a single positional read from a log channel which is kept open. The index of the
+ * segment being appended to is remapped when a reader looks past the end of its current mapping.
+ * Since all events end with a newline, the index can be rebuilt from the log if it is lost.
+ */
+public class Segment {
+  public static final String LOG = ".log";
+  public static final String INDEX = ".idx";
+  public static final int ENTRY_SIZE = Long.BYTES;
+  protected static final int NAME_WIDTH = 20; // Long.MAX_VALUE has 19 digits
+  protected static final byte[] GAP = {'\n'};
+
+  public final long first;
+  public final Path log;
+  public final Path index;
+
+  protected MappedByteBuffer mapped; // sync on this
+  protected FileChannel reader; // sync on this
+
+  public Segment(Path dir, long first) {
+    this.first = first;
+    String name = String.format("%0" + NAME_WIDTH + "d", first);
+    log = dir.resolve(name + LOG);
+    index = dir.resolve(name + INDEX);
+  }
+
+  /** Get the first event number of the segment of a log or index file, or null if neither. */
+  public static Long getFirst(Path file) {
+    String name = file.getFileName().toString();
+    for (String suffix : new String[] {LOG, INDEX}) {
+      if (name.endsWith(suffix)) {
+        try {
+          return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) { // fall through
+        }
+      }
+    }
+    return null;
+  }
+
+  /** The amount of committed events in this segment. */
+  public long size() throws IOException {
+    return Files.size(index) / ENTRY_SIZE;
+  }
+
+  /** The last committed event number in this segment, first - 1 if empty. */
+  public long last() throws IOException {
+    return first + size() - 1;
+  }
+
+  /** Whether the log has reached maxSize and no more events should be appended to it. */
+  public boolean isFull(long maxSize) throws IOException {
+    return Files.size(log) >= maxSize;
+  }
+
+  /** Returns null if the event is not committed in this segment. */
+  public String get(long n) throws IOException {
+    byte[] event = getBytes(n);
+    return event == null ? null : EventStore.decode(event);
+  }
+
+  /** Get the event as stored, a UTF_8 line, or null if it is not committed in this segment. */
+  public byte[] getBytes(long n) throws IOException {
+    long entry = n - first;
+    if (entry < 0) {
+      return null;
+    }
+    MappedByteBuffer idx = getIndex(entry);
+    if (idx == null) {
+      return null;
+    }
+    long start = entry == 0 ? 0 : idx.getLong((int) ((entry - 1) * ENTRY_SIZE));
+    long end = idx.getLong((int) (entry * ENTRY_SIZE));
+    if (end - start <= GAP.length) {
+      return null;
+    }
+    ByteBuffer event = ByteBuffer.allocate((int) (end - start));
+    readFully(getReader(), event, start);
+    return event.array();
+  }
+
+  /** Get an index mapping which contains entry, or null if entry is not committed. */
+  protected synchronized MappedByteBuffer getIndex(long entry) throws IOException {
+    if (mapped == null || entry >= mapped.capacity() / ENTRY_SIZE) {
+      try (FileChannel idx = FileChannel.open(index, READ)) {
+        long entries = idx.size() / ENTRY_SIZE;
+        if (entry >= entries) {
+          return null;
+        }
+        mapped = idx.map(READ_ONLY, 0, entries * ENTRY_SIZE); // stays valid after close
+      }
+    }
+    return mapped;
+  }
+
+  protected synchronized FileChannel getReader() throws IOException {
+    if (reader == null) {
+      reader = FileChannel.open(log, READ);
+    }
+    return reader;
+  }
+
+  /** Release the log channel, the segment may still be used and will reopen it as needed. */
+  public synchronized void close() {
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException e) { // nothing else to do
+      }
+      reader = null;
+    }
+    mapped = null;
+  }
+
+  /** Rebuild the index by finding the end of every event in the log. */
+  public void rebuildIndex() throws IOException {
+    try (FileChannel data = FileChannel.open(log, READ);
+        FileChannel idx = FileChannel.open(index, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      ByteBuffer offsets = ByteBuffer.allocate(1024 * ENTRY_SIZE);
+      long position = 0;
+      long written = 0;
+      for (int read; (read = data.read(buf, position)) > 0; position += read) {
+        buf.flip();
+        for (int i = 0; i < read; i++) {
+          if (buf.get(i) == '\n') {
+            offsets.putLong(position + i + 1);
+            if (!offsets.hasRemaining()) {
+              offsets.flip();
+              writeFully(idx, offsets, written);
+              written += offsets.limit();
+              offsets.clear();
+            }
+          }
+        }
+        buf.clear();
+      }
+      offsets.flip();
+      writeFully(idx, offsets, written);
+    }
+    synchronized (this) {
+      mapped = null;
+    }
+  }
+
+  /**
+   * Append events to the segment, null events are stored as gaps. The caller must ensure that there
+   * are no other appenders.
+   */
+  public void append(List<byte[]> events) throws IOException {
+    try (FileChannel idx = FileChannel.open(index, CREATE, READ, WRITE);
+        FileChannel data = FileChannel.open(log, CREATE, READ, WRITE)) {
+      long entries = idx.size() / ENTRY_SIZE;
+      long end = entries == 0 ? 0 : readLong(idx, (entries - 1) * ENTRY_SIZE);
+      ByteBuffer offsets = ByteBuffer.allocate(events.size() * ENTRY_SIZE);
+      for (byte[] event : events) {
+        if (event == null) {
+          event = GAP;
+        }
+        writeFully(data, ByteBuffer.wrap(event), end);
+        end += event.length;
+        offsets.putLong(end);
+      }
+      offsets.flip();
+      // The events must be in the log before the index entries make them visible, also on disk,
+      // since the OS may otherwise write the index pages back first.
+      data.force(false);
+      writeFully(idx, offsets, entries * ENTRY_SIZE);
+    }
+  }
+
+  /** Delete the segment files. Do NOT throw IOExceptions. */
+  public void tryDelete() {
+    close();
+    try {
+      Files.deleteIfExists(index); // first, so that readers stop seeing events
+      Files.deleteIfExists(log);
+    } catch (IOException e) { // Intent of 'try' function is to ignore these.
+    }
+  }
+
+  protected static long readLong(FileChannel channel, long position) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+    readFully(channel, buf, position);
+    buf.flip();
+    return buf.getLong();
+  }
+
+  protected static void readFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      int read = channel.read(buf, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of " + channel);
+      }
+      position += read;
+    }
+  }
+
+  protected static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+}
@@ -0,0 +1,403 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.segmentstore;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.events.EventStore;
+import com.googlesource.gerrit.plugins.events.fsstore.Fs;
+import com.googlesource.gerrit.plugins.events.fsstore.FsId;
+import com.googlesource.gerrit.plugins.events.fsstore.FsStore;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store events in large append only segment files (see Segment).
+ *
+ * <p>Appends and trims are serialized with a lock file, which makes this store safe for multiple
+ * processes on the same host, but NOT for multiple nodes sharing a filesystem over NFS (use the
+ * FsStore for Multi-Master setups). Readers do not take the lock.
+ *
+ * <p>Layout:
+ *
+ * <p>uuid/ - the store id (see FsId)
+ *
+ * <p>segments/<first>.log, segments/<first>.idx - the segments
+ *
+ * <p>tail - the lowest event number which has not been trimmed
+ *
+ * <p>lock - the append lock
+ *
+ * <p>A new store can adopt the events of an existing FsStore. The events are copied from the
+ * FsStore shard tree with their numbers, and the store takes over the FsStore uuid, so that clients
+ * can keep resuming with their current ids. The uuid is only written once adoption is complete.
+ */
+@Singleton
+public class SegmentStore implements EventStore {
+  private static final Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+  public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final long MAX_GET_SPINS = 1000;
+  protected static final int ADOPT_BATCH_SIZE = 1000;
+  /**
+   * Events this close to the cached tail re-read the tail before they are looked up. Farther events
+   * trimmed by other processes are served until the tail is read again, or their segment deleted.
+   */
+  protected static final long TAIL_REFRESH_WINDOW = 1000;
+
+  protected final Path segmentsDir;
+  protected final Path tailFile;
+  protected final Path lockFile;
+  protected final long segmentSize;
+  protected final UUID uuid;
+
+  protected final TreeMap<Long, Segment> segments = new TreeMap<>(); // sync on this
+  protected long cachedTail = 1; // sync on this
+
+  @Inject
+  public SegmentStore(SitePaths site, PluginConfigFactory cfg, @PluginName String pluginName)
+      throws IOException {
+    this(
+        site.data_dir.resolve("plugin").resolve("events").resolve("segments-v1"),
+        cfg.getFromGerritConfig(pluginName).getLong("segmentSize", DEFAULT_SEGMENT_SIZE),
+        site.data_dir.resolve("plugin").resolve("events").resolve("fstore-v2"));
+  }
+
+  public SegmentStore(Path base) throws IOException {
+    this(base, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public SegmentStore(Path base, long segmentSize) throws IOException {
+    this(base, segmentSize, null);
+  }
+
+  /** @param adoptFrom an FsStore to adopt the events from if this is a new store, or null */
+  public SegmentStore(Path base, long segmentSize, Path adoptFrom) throws IOException {
+    segmentsDir = base.resolve("segments");
+    tailFile = base.resolve("tail");
+    lockFile = base.resolve("lock");
+    this.segmentSize = segmentSize;
+    Files.createDirectories(segmentsDir);
+    Path uuidDir = base.resolve("uuid");
+    FsId id = new FsId(uuidDir);
+    synchronized (this) {
+      try (FileChannel lock = FileChannel.open(lockFile, CREATE, WRITE)) {
+        lock.lock(); // released when closed
+        loadSegments();
+        if (!Files.exists(uuidDir.resolve(FsId.VALUE).resolve(FsId.VALUE))
+            && adoptFrom != null
+            && Files.exists(adoptFrom.resolve("uuid"))) {
+          FsStore source = new FsStore(adoptFrom);
+          adopt(source);
+          id.initFs(source.getUuid().toString());
+        } else {
+          id.initFs(); // Only writes a new uuid if there is none yet
+        }
+        rebuildMissingIndexes();
+      }
+    }
+    uuid = UUID.fromString(id.spinGet(MAX_GET_SPINS));
+  }
+
+  @Override
+  public UUID getUuid() throws IOException {
+    return uuid;
+  }
+
+  @Override
+  public void add(String event) throws IOException {
+    addAll(Collections.singletonList(event));
+  }
+
+  @Override
+  public void addAll(List<String> events) throws IOException {
+    if (events.isEmpty()) {
+      return;
+    }
+    List<byte[]> encoded = new ArrayList<>(events.size());
+    for (String event : events) {
+      encoded.add(EventStore.encode(event));
+    }
+    synchronized (this) {
+      try (FileChannel lock = FileChannel.open(lockFile, CREATE, WRITE)) {
+        lock.lock(); // released when closed
+        Segment last = getLastSegment();
+        if (last == null) {
+          last = createSegment(1);
+        } else if (last.isFull(segmentSize)) {
+          last = createSegment(last.last() + 1);
+        }
+        last.append(encoded);
+      }
+    }
+  }
+
+  @Override
+  public synchronized long getHead() throws IOException {
+    Segment last = getLastSegment();
+    return last == null ? 0 : last.last();
+  }
+
+  @Override
+  public String get(long n) throws IOException {
+    byte[] event = getBytes(n);
+    return event == null ? null : EventStore.decode(event);
+  }
+
+  @Override
+  public byte[] getBytes(long n) throws IOException {
+    Segment segment;
+    synchronized (this) {
+      if (segments.isEmpty() || n > segments.lastEntry().getValue().last()) {
+        getLastSegment(); // Pick up segments created by other processes
+      }
+      Map.Entry<Long, Segment> entry = segments.floorEntry(n);
+      if (entry == null) {
+        return null;
+      }
+      // Only the first segment can contain trimmed events. The tail only grows, so only events near
+      // the cached one need a fresh read for trims by other processes.
+      if (entry.getKey().equals(segments.firstKey())
+          && (n < cachedTail || (n < cachedTail + TAIL_REFRESH_WINDOW && n < readTail()))) {
+        return null;
+      }
+      segment = entry.getValue();
+    }
+    try {
+      return segment.getBytes(n);
+    } catch (NoSuchFileException e) {
+      return null; // trimmed by another process
+    }
+  }
+
+  @Override
+  public List<String> get(long from, long to) throws IOException {
+    List<String> events = new ArrayList<>();
+    for (byte[] event : getBytes(from, to)) {
+      events.add(event == null ? null : EventStore.decode(event));
+    }
+    return events;
+  }
+
+  @Override
+  public List<byte[]> getBytes(long from, long to) throws IOException {
+    List<byte[]> events = new ArrayList<>();
+    long tail;
+    TreeMap<Long, Segment> current;
+    synchronized (this) {
+      long head = getHead();
+      if (to > head) {
+        to = head;
+      }
+      if (from > to) {
+        return events;
+      }
+      tail = readTail();
+      current = new TreeMap<>(segments);
+    }
+    Map.Entry<Long, Segment> entry = current.floorEntry(from);
+    Long next = entry == null ? current.ceilingKey(from) : current.higherKey(entry.getKey());
+    for (long n = from; n <= to; n++) {
+      if (next != null && n >= next) { // on to the next segment
+        entry = current.floorEntry(n);
+        next = current.higherKey(entry.getKey());
+      }
+      byte[] event = null;
+      if (entry != null && n >= tail) {
+        try {
+          event = entry.getValue().getBytes(n);
+        } catch (NoSuchFileException e) { // trimmed by another process
+        }
+      }
+      events.add(event);
+    }
+    return events;
+  }
+
+  @Override
+  public long getTail() throws IOException {
+    if (getHead() == 0) {
+      return 0;
+    }
+    synchronized (this) {
+      return readTail();
+    }
+  }
+
+  @Override
+  public void trim(long trim) throws IOException {
+    long head = getHead();
+    if (trim >= head) {
+      trim = head - 1;
+    }
+    if (trim > 0) {
+      synchronized (this) {
+        try (FileChannel lock = FileChannel.open(lockFile, CREATE, WRITE)) {
+          lock.lock(); // released when closed
+          long tail = trim + 1;
+          if (tail > readTail()) {
+            writeTail(tail);
+          }
+          deleteTrimmedSegments();
+        }
+      }
+    }
+  }
+
+  /** Must hold the lock. */
+  protected void writeTail(long tail) throws IOException {
+    Path tmp = Files.createTempFile(tailFile.getParent(), "tail", null);
+    Fs.writeUtf8(tmp, Long.toString(tail) + "\n");
+    if (!Fs.tryAtomicMove(tmp, tailFile)) {
+      Fs.tryDelete(tmp);
+      throw new IOException("Cannot update " + tailFile);
+    }
+    cachedTail = tail;
+  }
+
+  /** Copy all the events of source into this (empty) store. Must hold the lock. */
+  protected void adopt(EventStore source) throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.tryDelete(); // left behind by an interrupted adoption
+    }
+    segments.clear();
+    Fs.tryDelete(tailFile);
+    long head = source.getHead();
+    long tail = source.getTail();
+    if (head < 1) {
+      return;
+    }
+    log.info("Adopting events " + tail + " to " + head + " into " + segmentsDir);
+    Segment segment = createSegment(tail);
+    List<byte[]> batch = new ArrayList<>(ADOPT_BATCH_SIZE);
+    for (long n = tail; n <= head; n++) {
+      String event = source.get(n);
+      batch.add(event == null ? null : EventStore.encode(event)); // keep the numbering with gaps
+      if (batch.size() == ADOPT_BATCH_SIZE || n == head) {
+        segment.append(batch);
+        batch.clear();
+        if (n < head && segment.isFull(segmentSize)) {
+          segment = createSegment(n + 1);
+        }
+      }
+    }
+    writeTail(tail);
+  }
+
+  /** Rebuild the index of segments which only have a log. Must hold the lock. */
+  protected void rebuildMissingIndexes() throws IOException {
+    try (DirectoryStream<Path> logs = Files.newDirectoryStream(segmentsDir, "*" + Segment.LOG)) {
+      for (Path path : logs) {
+        Long first = Segment.getFirst(path);
+        if (first != null) {
+          Segment segment = new Segment(segmentsDir, first);
+          if (!Files.exists(segment.index)) {
+            log.warn("Rebuilding missing index for " + path);
+            segment.rebuildIndex();
+          }
+        }
+      }
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause(); // Throw the causal checked exception
+    }
+    loadSegments();
+  }
+
+  /** Delete all but the last segment if all their events are trimmed. Must hold the lock. */
+  protected void deleteTrimmedSegments() throws IOException {
+    loadSegments();
+    Segment previous = null;
+    for (Segment segment : segments.values()) {
+      if (previous != null && segment.first <= cachedTail) {
+        previous.tryDelete();
+      }
+      previous = segment;
+    }
+    loadSegments();
+  }
+
+  /** Get the last segment, reloading the segments if it might have been rolled over. */
+  protected Segment getLastSegment() throws IOException {
+    Map.Entry<Long, Segment> last = segments.lastEntry();
+    if (last == null || last.getValue().isFull(segmentSize)) {
+      loadSegments();
+      last = segments.lastEntry();
+    }
+    return last == null ? null : last.getValue();
+  }
+
+  protected Segment createSegment(long first) throws IOException {
+    Segment segment = new Segment(segmentsDir, first);
+    Files.createFile(segment.log);
+    Files.createFile(segment.index);
+    segments.put(first, segment);
+    return segment;
+  }
+
+  /** Reload the segments, reusing the already open ones to keep their index mappings. */
+  protected void loadSegments() throws IOException {
+    TreeMap<Long, Segment> loaded = new TreeMap<>();
+    try (DirectoryStream<Path> indexes =
+        Files.newDirectoryStream(segmentsDir, "*" + Segment.INDEX)) {
+      for (Path index : indexes) {
+        Long first = Segment.getFirst(index);
+        if (first != null) {
+          Segment segment = segments.remove(first);
+          loaded.put(first, segment != null ? segment : new Segment(segmentsDir, first));
+        }
+      }
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause(); // Throw the causal checked exception
+    }
+    for (Segment deleted : segments.values()) {
+      deleted.close();
+    }
+    segments.clear();
+    segments.putAll(loaded);
+  }
+
+  /** Tails only ever increase, so the cached value is a lower bound. */
+  protected long readTail() throws IOException {
+    try {
+      long tail = Long.parseLong(Fs.readUtf8(tailFile).trim());
+      if (tail > cachedTail) {
+        cachedTail = tail;
+      }
+    } catch (NoSuchFileException e) { // never trimmed
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid tail in " + tailFile, e);
+    }
+    return cachedTail;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.common.base.Suppliers;
+import com.google.gerrit.server.data.RefUpdateAttribute;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class EventMetadataTest extends TestCase {
+  @Test
+  public void testEncodeDecode() throws Exception {
+    EventMetadata metadata = new EventMetadata("ref-updated", "p", "refs/heads/master", 5, 10);
+    EventMetadata decoded = EventMetadata.decode(metadata.encode());
+    assertEquals("ref-updated", decoded.type);
+    assertEquals("p", decoded.project);
+    assertEquals("refs/heads/master", decoded.ref);
+    assertEquals(5, decoded.change);
+    assertEquals(10, decoded.createdOn);
+    assertEquals("refs/heads/master", decoded.getBranch().branch());
+  }
+
+  @Test
+  public void testMissingFields() throws Exception {
+    EventMetadata metadata = new EventMetadata(null, null, null, 0, 0);
+    EventMetadata decoded = EventMetadata.decode(metadata.encode());
+    assertNull(decoded.type);
+    assertNull(decoded.project);
+    assertNull(decoded.getBranch());
+  }
+
+  @Test
+  public void testInvalid() throws Exception {
+    assertNull(EventMetadata.decode(null));
+    assertNull(EventMetadata.decode("t\tp\tr\t0\t0")); // incomplete
+    assertNull(EventMetadata.decode("t\tp\tr\t0\n"));
+    assertNull(EventMetadata.decode("t\tp\tr\tx\t0\n"));
+  }
+
+  @Test
+  public void testOf() throws Exception {
+    RefUpdateAttribute refUpdate = new RefUpdateAttribute();
+    refUpdate.project = "p";
+    refUpdate.refName = "refs/heads/master";
+    RefUpdatedEvent event = new RefUpdatedEvent();
+    event.refUpdate = Suppliers.ofInstance(refUpdate);
+    EventMetadata metadata = EventMetadata.of(event);
+    assertEquals(event.getType(), metadata.type);
+    assertEquals("p", metadata.project);
+    assertEquals("refs/heads/master", metadata.ref);
+    assertEquals(event.eventCreatedOn, metadata.createdOn);
+
+    refUpdate.refName = "refs/heads/a\tb";
+    assertNull(EventMetadata.of(event)); // cannot be encoded
+    assertNull(EventMetadata.of(new ProjectCreatedEvent())); // not a RefEvent
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventStoreWriterTest extends TestCase {
+  private static class ListStore implements EventStore {
+    final List<String> events = new ArrayList<>();
+    final List<Integer> batches = new ArrayList<>();
+
+    @Override
+    public UUID getUuid() {
+      return null;
+    }
+
+    @Override
+    public synchronized long getHead() {
+      return events.size();
+    }
+
+    @Override
+    public long getTail() {
+      return events.isEmpty() ? 0 : 1;
+    }
+
+    @Override
+    public synchronized void add(String event) {
+      events.add(event);
+    }
+
+    @Override
+    public synchronized void addAll(List<String> events) throws IOException {
+      batches.add(events.size());
+      EventStore.super.addAll(events);
+    }
+
+    @Override
+    public synchronized String get(long n) {
+      return events.get((int) n - 1);
+    }
+
+    @Override
+    public void trim(long trim) {}
+  }
+
+  private ExecutorService executor;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testWritesInOrderInBatches() throws Exception {
+    ListStore store = new ListStore();
+    int[] notified = new int[1];
+    EventStoreWriter writer =
+        new EventStoreWriter(store, 100, 10, 0, () -> notified[0]++, new DisabledMetricMaker());
+    for (int i = 1; i <= 25; i++) {
+      writer.add("" + i);
+    }
+    writer.start(executor);
+    writer.stop();
+
+    assertEquals(25, store.events.size());
+    for (int i = 1; i <= 25; i++) {
+      assertEquals("" + i, store.get(i));
+    }
+    for (int batch : store.batches) {
+      assertTrue(batch <= 10);
+    }
+    assertEquals(store.batches.size(), notified[0]);
+  }
+
+  @Test
+  public void testStopFlushesQueue() throws Exception {
+    ListStore store = new ListStore();
+    EventStoreWriter writer =
+        new EventStoreWriter(store, 100, 100, 0, () -> {}, new DisabledMetricMaker());
+    writer.add("1");
+    writer.add("2");
+    writer.stop();
+
+    assertEquals(2, store.events.size());
+    assertEquals(1, store.batches.size());
+  }
+}
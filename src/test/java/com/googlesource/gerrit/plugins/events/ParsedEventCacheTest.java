@@ -0,0 +1,78 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.googlesource.gerrit.plugins.events.ParsedEventCache.ParsedEvent;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ParsedEventCacheTest extends TestCase {
+  private static final byte[] EVENT =
+      EventStore.encode(
+          "{\"type\":\"ref-updated\","
+              + "\"refUpdate\":{\"project\":\"p\",\"refName\":\"refs/heads/m\"}}");
+
+  @Test
+  public void testParsed() {
+    ParsedEventCache cache = new ParsedEventCache(10, new DisabledMetricMaker());
+    ParsedEvent event = cache.get(1, EVENT);
+    assertEquals("ref-updated", event.type);
+    assertEquals("p", event.project.get());
+    assertEquals("refs/heads/m", event.branch.branch());
+  }
+
+  @Test
+  public void testSharedUntilFetchedByAllSessions() {
+    ParsedEventCache cache = new ParsedEventCache(10, new DisabledMetricMaker());
+    cache.register();
+    cache.register();
+    cache.register();
+
+    ParsedEvent event = cache.get(1, EVENT);
+    assertSame(event, cache.get(1, EVENT));
+    assertSame(event, cache.get(1, EVENT));
+    assertEquals(1, cache.parses);
+    assertEquals(2, cache.hits);
+    assertEquals(0, cache.size());
+
+    assertNotSame(event, cache.get(1, EVENT));
+    assertEquals(2, cache.parses);
+  }
+
+  @Test
+  public void testChangedEventIsParsed() {
+    ParsedEventCache cache = new ParsedEventCache(10, new DisabledMetricMaker());
+    cache.register();
+    cache.register();
+    cache.get(1, EVENT);
+    assertEquals("other", cache.get(1, EventStore.encode("{\"type\":\"other\"}")).type);
+    assertEquals(2, cache.parses);
+  }
+
+  @Test
+  public void testBounded() {
+    ParsedEventCache cache = new ParsedEventCache(2, new DisabledMetricMaker());
+    cache.register();
+    cache.register();
+    for (long n = 1; n <= 5; n++) {
+      cache.get(n, EVENT);
+    }
+    assertEquals(2, cache.size());
+    cache.unregister();
+    cache.unregister();
+    assertEquals(0, cache.size());
+  }
+}
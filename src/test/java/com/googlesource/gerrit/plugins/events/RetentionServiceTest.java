@@ -0,0 +1,106 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+import com.googlesource.gerrit.plugins.events.fsstore.Fs;
+import com.googlesource.gerrit.plugins.events.fsstore.FsStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetentionServiceTest extends TestCase {
+  private static final long NOW = System.currentTimeMillis() / 1000;
+  private static final long DAY = DAYS.toSeconds(1);
+
+  private Path base;
+  private FsStore store;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    base = Files.createTempDirectory("events-Retention");
+    store = new FsStore(base);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(base);
+  }
+
+  private void add(long createdOn) throws IOException {
+    store.add("{\"type\":\"ref-updated\",\"eventCreatedOn\":" + createdOn + "}");
+  }
+
+  private RetentionService newService(long maxEvents, long maxAge, long maxBytes, long maxTrim) {
+    return new RetentionService(store, null, 1000, maxEvents, maxAge, maxBytes, maxTrim);
+  }
+
+  @Test
+  public void testMaxEvents() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      add(NOW);
+    }
+    newService(4, 0, 0, 100).trim();
+    assertEquals(7, store.getTail());
+    assertEquals(10, store.getHead());
+  }
+
+  @Test
+  public void testMaxAge() throws IOException {
+    for (int i = 10; i > 0; i--) {
+      add(NOW - i * DAY);
+    }
+    add(NOW);
+    newService(0, DAYS.toMillis(3) + DAYS.toMillis(1) / 2, 0, 100).trim();
+    assertEquals(8, store.getTail()); // 3 days old and newer are kept
+  }
+
+  @Test
+  public void testMaxBytes() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      add(NOW);
+    }
+    long size = store.getBytes(1).length;
+    newService(0, 0, size * 5, 100).trim();
+    assertEquals(6, store.getTail());
+  }
+
+  @Test
+  public void testMaxTrim() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      add(NOW);
+    }
+    RetentionService service = newService(1, 0, 0, 3);
+    service.trim();
+    assertEquals(4, store.getTail());
+    service.trim();
+    assertEquals(7, store.getTail());
+  }
+
+  @Test
+  public void testClaim() throws IOException {
+    FsStore other = new FsStore(base); // another node
+    assertTrue(store.claim("retention", 1));
+    assertFalse(other.claim("retention", 1));
+    assertTrue(other.claim("retention", 2));
+    assertFalse(store.claim("retention", 2));
+  }
+}
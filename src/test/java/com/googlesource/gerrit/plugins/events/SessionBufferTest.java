@@ -0,0 +1,163 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.apache.sshd.common.channel.IoWriteFutureImpl;
+import org.apache.sshd.common.io.IoOutputStream;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.closeable.AbstractCloseable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionBufferTest extends TestCase {
+  /** A client whose writes complete when the test says so. */
+  private static class Client extends AbstractCloseable implements IoOutputStream {
+    final List<IoWriteFutureImpl> pending = new ArrayList<>();
+    final List<String> written = new ArrayList<>();
+
+    @Override
+    public synchronized IoWriteFuture writeBuffer(Buffer buffer) {
+      written.add(new String(buffer.array(), 0, buffer.available(), StandardCharsets.UTF_8));
+      IoWriteFutureImpl future = new IoWriteFutureImpl(this, buffer);
+      pending.add(future);
+      notifyAll();
+      return future;
+    }
+
+    synchronized IoWriteFutureImpl await() throws InterruptedException {
+      while (pending.isEmpty()) {
+        wait(10000);
+      }
+      return pending.remove(0);
+    }
+
+    void complete() throws InterruptedException {
+      await().setValue(Boolean.TRUE);
+    }
+  }
+
+  private ScheduledThreadPoolExecutor scheduler;
+  private Client client;
+  private Semaphore wakes;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    scheduler = new ScheduledThreadPoolExecutor(1);
+    client = new Client();
+    wakes = new Semaphore(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    scheduler.shutdownNow();
+  }
+
+  private SessionBuffer create(long size, long linger) {
+    SessionBuffer.Factory factory =
+        new SessionBuffer.Factory(
+            size, SessionBuffer.Policy.REPLAY, linger, new DisabledMetricMaker());
+    return factory.create(client, scheduler, wakes::release);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testFullAndDrained() throws Exception {
+    SessionBuffer buffer = create(10, 0);
+    assertTrue(buffer.offer(1, bytes("1234"))); // written right away
+    assertTrue(buffer.offer(2, bytes("5678")));
+    assertFalse(buffer.offer(3, bytes("abcd")));
+    assertTrue(buffer.isBlocked());
+    assertFalse(buffer.offer(4, bytes("e"))); // until drained
+    assertEquals(80, buffer.factory.getMaxOccupancy());
+    assertEquals(0, buffer.getResumePoint(2));
+
+    client.complete();
+    assertTrue(wakes.tryAcquire(10, TimeUnit.SECONDS));
+    assertFalse(buffer.isBlocked());
+    assertEquals(1, buffer.getResumePoint(2)); // writing 2
+    assertTrue(buffer.offer(3, bytes("abcd")));
+  }
+
+  @Test
+  public void testLinger() throws Exception {
+    SessionBuffer buffer = create(1000, 50);
+    assertTrue(buffer.offer(1, bytes("1\n")));
+    assertTrue(buffer.offer(2, bytes("2\n")));
+    client.await(); // lingered, both in one write
+    assertTrue(buffer.offer(3, bytes("3\n")));
+    assertTrue(buffer.offer(4, bytes("4\n")));
+    assertEquals(1, client.written.size()); // waiting for the first write
+    assertEquals("1\n2\n", client.written.get(0));
+  }
+
+  @Test
+  public void testWrittenAfterWrite() throws Exception {
+    SessionBuffer buffer = create(1000, 0);
+    assertTrue(buffer.offer(1, bytes("1\n")));
+    assertTrue(buffer.offer(2, bytes("2\n")));
+    assertTrue(buffer.offer(3, bytes("3\n")));
+    client.complete();
+    client.complete();
+    assertEquals(List.of("1\n", "2\n3\n"), client.written);
+    assertEquals(0, buffer.getBytes());
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    SessionBuffer buffer = create(10, 0);
+    assertTrue(buffer.offer(1, bytes("1234")));
+    assertTrue(buffer.offer(2, bytes("5678")));
+    assertFalse(buffer.offer(3, bytes("abcd")));
+    assertEquals(2, buffer.clear());
+    assertEquals(4, buffer.getBytes());
+    assertTrue(buffer.isBlocked()); // still writing 1
+
+    client.complete();
+    assertTrue(wakes.tryAcquire(10, TimeUnit.SECONDS));
+    assertFalse(buffer.isBlocked());
+    assertEquals(0, buffer.getBytes());
+    assertEquals(7, buffer.getResumePoint(7));
+  }
+
+  @Test
+  public void testLargeEvent() throws Exception {
+    SessionBuffer buffer = create(10, 0);
+    assertTrue(buffer.offer(1, bytes("larger than the buffer")));
+  }
+
+  @Test
+  public void testFailed() throws Exception {
+    SessionBuffer buffer = create(10, 0);
+    assertTrue(buffer.offer(1, bytes("1")));
+    client.await().setValue(new IOException("closed"));
+    assertTrue(wakes.tryAcquire(10, TimeUnit.SECONDS));
+    assertTrue(buffer.isFailed());
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.googlesource.gerrit.plugins.events.StreamDispatcher.DispatchedEvent;
+import com.googlesource.gerrit.plugins.events.StreamDispatcher.Subscription;
+import com.googlesource.gerrit.plugins.events.fsstore.Fs;
+import com.googlesource.gerrit.plugins.events.fsstore.FsStore;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamDispatcherTest extends TestCase {
+  private Path base;
+  private FsStore store;
+  private StreamDispatcher dispatcher;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    base = Files.createTempDirectory("events-Dispatcher");
+    store = new FsStore(base);
+    dispatcher = new StreamDispatcher(store, Runnable::run, 3, new DisabledMetricMaker());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(base);
+  }
+
+  private void add(String type) throws Exception {
+    store.add("{\"type\":\"" + type + "\"}");
+  }
+
+  @Test
+  public void testDispatchedOnce() throws Exception {
+    add("before");
+    AtomicInteger wakes = new AtomicInteger();
+    Subscription one = dispatcher.subscribe(wakes::incrementAndGet);
+    Subscription two = dispatcher.subscribe(wakes::incrementAndGet);
+    assertEquals(1, one.getLastDispatched());
+    assertNull(one.peek());
+
+    add("new");
+    dispatcher.onStreamEventUpdate();
+    assertEquals(2, wakes.get());
+    DispatchedEvent event = one.poll();
+    assertEquals(2, event.number);
+    assertEquals("new", event.getEvent().type);
+    assertSame(event, two.poll());
+    assertEquals(2, one.getLastDispatched());
+
+    String withId = new String(event.getRawWithId(), StandardCharsets.UTF_8);
+    assertTrue(withId.contains("\"id\":\"" + store.getUuid() + ":2\""));
+    assertSame(event.getRawWithId(), event.getRawWithId());
+  }
+
+  @Test
+  public void testOverflow() throws Exception {
+    Subscription slow = dispatcher.subscribe(() -> {});
+    for (int i = 1; i <= 5; i++) {
+      add("event");
+    }
+    dispatcher.onStreamEventUpdate();
+    assertEquals(4, slow.poll().number); // cleared at 4, 1 to 3 are replayed from the store
+    assertEquals(5, slow.poll().number);
+    assertNull(slow.poll());
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    Subscription subscription = dispatcher.subscribe(() -> {});
+    store.add("[\"not an object\"]");
+    store.add("{not json");
+    dispatcher.onStreamEventUpdate();
+    for (long number = 1; number <= 2; number++) {
+      DispatchedEvent event = subscription.poll();
+      assertEquals(number, event.number);
+      assertNull(event.getEvent()); // logged and skipped
+      assertNull(event.getRawWithId());
+    }
+  }
+
+  @Test
+  public void testUnsubscribed() throws Exception {
+    Subscription subscription = dispatcher.subscribe(() -> {});
+    subscription.close();
+    add("event");
+    dispatcher.onStreamEventUpdate();
+    assertEquals(0, dispatcher.getSubscriptions());
+    assertNull(subscription.poll());
+  }
+}
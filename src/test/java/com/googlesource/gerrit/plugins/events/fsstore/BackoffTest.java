@@ -0,0 +1,100 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class BackoffTest extends TestCase {
+  @Test
+  public void testNone() {
+    Backoff.Spin spin = Backoff.NONE.start(3);
+    assertTrue(spin.canTry(2));
+    assertFalse(spin.canTry(3));
+    assertEquals(1, spin.getRemaining(2));
+    assertEquals(0, Backoff.NONE.getDelay(10));
+  }
+
+  @Test
+  public void testExponential() {
+    Backoff backoff = Backoff.create(Backoff.EXPONENTIAL, 8, 60000);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(backoff.getDelay(0) <= MILLISECONDS.toNanos(1));
+      assertTrue(backoff.getDelay(2) <= MILLISECONDS.toNanos(4));
+      assertTrue(backoff.getDelay(100) <= MILLISECONDS.toNanos(8));
+    }
+    Backoff.Spin spin = backoff.start(1);
+    assertTrue(spin.canTry(1000)); // limited by the timeout instead
+    assertEquals(1, spin.getRemaining(1000));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Backoff.Spin spin = Backoff.create(Backoff.EXPONENTIAL, 1, 1).start(1000);
+    assertTrue(spin.canTry(0));
+    Thread.sleep(5);
+    assertTrue(spin.canTry(0)); // always try once
+    assertFalse(spin.canTry(1));
+  }
+
+  @Test
+  public void testAdaptive() {
+    Backoff backoff = Backoff.create(Backoff.ADAPTIVE, 100, 60000);
+    assertEquals(0, backoff.getDelay(0));
+    for (int i = 0; i < 100; i++) {
+      backoff.succeeded(5);
+    }
+    boolean waits = false;
+    for (int i = 0; i < 100; i++) {
+      waits |= backoff.getDelay(0) > MILLISECONDS.toNanos(1);
+    }
+    assertTrue(waits);
+  }
+
+  @Test
+  public void testIncrementWithBackoff() throws Exception {
+    Path dir = Files.createTempDirectory("events-Backoff");
+    try {
+      FsSequence seq = new FsSequence(dir);
+      seq.initFs();
+      seq.setBackoff(Backoff.create(Backoff.ADAPTIVE, 10, 60000));
+      Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] =
+            new Thread(
+                () -> {
+                  try {
+                    for (int i = 0; i < 25; i++) {
+                      seq.spinIncrement(1);
+                    }
+                  } catch (Exception e) {
+                    throw new RuntimeException(e);
+                  }
+                });
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(100, (long) seq.spinGet(10));
+    } finally {
+      Fs.tryRecursiveDelete(dir);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BuildPoolTest extends TestCase {
+  private Path base;
+  private UpdatableFileValue.BasePaths paths;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    base = Files.createTempDirectory("events-BuildPool");
+    paths = new UpdatableFileValue.BasePaths(base);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(base);
+  }
+
+  @Test
+  public void testTake() throws Exception {
+    BuildPool pool = new BuildPool(paths, 2); // housekeeping runs inline
+    assertNull(pool.take(null));
+    assertEquals(1, pool.misses.get());
+    assertEquals(2, pool.trees.size());
+
+    BuildPool.Tree tree = pool.take(null);
+    assertTrue(Files.isDirectory(tree.dir.resolve(tree.uuid).resolve(UpdatableFileValue.NEXT)));
+    tree = pool.take("named.5");
+    assertEquals("named.5", tree.uuid);
+    assertTrue(Files.isDirectory(tree.dir.resolve("named.5").resolve(UpdatableFileValue.NEXT)));
+    assertEquals(2, pool.hits.get());
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    BuildPool pool = new BuildPool(paths, 1);
+    BuildPool.Tree old = pool.create();
+    pool.trees.add(new BuildPool.Tree(old.dir, old.uuid, 0));
+    assertNull(pool.take(null));
+    assertFalse(Files.exists(old.dir));
+  }
+
+  @Test
+  public void testSequence() throws Exception {
+    FsSequence seq = new FsSequence(base);
+    seq.initFs();
+    seq.setBuildPool(1);
+    for (long i = 1; i <= 5; i++) {
+      assertEquals(i, seq.spinIncrement(10));
+    }
+    assertEquals(4, seq.paths.pool.hits.get());
+    assertEquals(1, seq.paths.build.toFile().list().length); // just the pooled tree
+  }
+}
@@ -14,7 +14,11 @@
 
 package com.googlesource.gerrit.plugins.events.fsstore;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
 import junit.framework.TestCase;
 import org.junit.Test;
 
@@ -69,6 +73,20 @@ public class DynamicRangeSharderTest extends TestCase {
     assertEquals(1000000, sharder3.sizeOfLevel(2));
   }
 
+  @Test
+  public void testDirSize() {
+    assertEquals(1, sharder3.dirSize(0, 5000)); // the first subtree holds entries directly
+    assertEquals(1000, sharder3.dirSize(1000, 1999));
+    assertEquals(1, sharder3.dirSize(1000, 1998));
+    assertEquals(1, sharder3.dirSize(1001, 5000));
+    assertEquals(1000, sharder3.dirSize(1000, 999999)); // not the whole subtree
+    assertEquals(1000000, sharder3.dirSize(1000000, 2999999));
+    assertEquals(1000, sharder3.dirSize(1000000, 1999998));
+
+    assertEquals(Paths.get("base", "3.3", "001"), sharder3.dir(1000, 1000));
+    assertEquals(Paths.get("base", "3.3.3", "001"), sharder3.dir(1000000, 1000000));
+  }
+
   @Test
   public void testPadToOrder() {
     assertEquals("01", sharder2.padToOrder(1));
@@ -115,6 +133,26 @@ public class DynamicRangeSharderTest extends TestCase {
     assertEquals(false, sharder3.isLastDirEntry(10001));
   }
 
+  @Test
+  public void testCachedDir() {
+    assertSame(sharder3.dir(1000), sharder3.dir(1999));
+    assertPathEquals("base/3.3/001/1999", sharder3.path(1999));
+  }
+
+  @Test
+  public void testFindOrders() throws Exception {
+    Path base = Files.createTempDirectory("events-Sharder");
+    try {
+      assertTrue(DynamicRangeSharder.findOrders(base).isEmpty());
+      Files.createDirectories(base.resolve("3.3"));
+      Files.createDirectories(base.resolve("2"));
+      Files.createDirectories(base.resolve("2.3"));
+      assertEquals(new HashSet<>(Arrays.asList(2, 3)), DynamicRangeSharder.findOrders(base));
+    } finally {
+      Fs.tryRecursiveDelete(base);
+    }
+  }
+
   public static void assertPathEquals(String a, Path b) {
     assertEquals(a, b.toString());
   }
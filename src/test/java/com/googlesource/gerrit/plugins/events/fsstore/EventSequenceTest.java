@@ -17,6 +17,8 @@ package com.googlesource.gerrit.plugins.events.fsstore;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import junit.framework.TestCase;
 import org.junit.After;
 import org.junit.Before;
@@ -68,4 +70,25 @@ public class EventSequenceTest extends TestCase {
     assertNotNull(up.destination);
     assertEquals(event, Fs.readUtf8(up.destination));
   }
+
+  @Test
+  public void testSpinSubmitGroup() throws IOException {
+    EventSequence group =
+        new EventSequence(myBase.resolve("group")) {
+          @Override
+          protected Path getEventDestination(Long n) {
+            return paths.base.resolve(n.toString());
+          }
+        };
+    group.initFs();
+    group.spinSubmit("Event 1", maxSpins);
+
+    List<String> events = Arrays.asList("Event 2", "Event 3", "Event 4");
+    group.spinSubmit(events, maxSpins);
+    assertEquals((long) 4, (long) group.get());
+    assertEquals(2, group.totalUpdates);
+    for (long n = 1; n <= 4; n++) {
+      assertEquals("Event " + n, Fs.readUtf8(myBase.resolve("group").resolve(Long.toString(n))));
+    }
+  }
 }
@@ -0,0 +1,29 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FsListenerTest extends TestCase {
+  @Test
+  public void testMaxPollingInterval() {
+    assertEquals(100, FsListener.FsLifecycleListener.getMaxPollingInterval(100, null));
+    assertEquals(100, FsListener.FsLifecycleListener.getMaxPollingInterval(100, "50ms"));
+    assertEquals(500, FsListener.FsLifecycleListener.getMaxPollingInterval(100, "500ms"));
+    assertEquals(500, FsListener.FsLifecycleListener.getMaxPollingInterval(100, "500"));
+    assertEquals(30000, FsListener.FsLifecycleListener.getMaxPollingInterval(100, "30s"));
+  }
+}
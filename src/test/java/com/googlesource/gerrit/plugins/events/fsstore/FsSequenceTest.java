@@ -65,6 +65,13 @@ public class FsSequenceTest extends TestCase {
     assertEquals(next, seq.spinIncrement(1));
   }
 
+  @Test
+  public void testSpinAdvanceTo() throws IOException {
+    assertEquals(10, seq.spinAdvanceTo(10, 1));
+    assertEquals(10, seq.spinAdvanceTo(5, 1)); // never goes back
+    assertEquals(11, seq.spinIncrement(1));
+  }
+
   @Test
   public void testCount() throws Exception {
     long previous = -1;
@@ -14,10 +14,15 @@
 
 package com.googlesource.gerrit.plugins.events.fsstore;
 
+import com.googlesource.gerrit.plugins.events.EventMetadata;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -26,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import junit.framework.TestCase;
 import org.junit.After;
 import org.junit.Before;
@@ -120,6 +126,119 @@ public class FsStoreTest extends TestCase {
     add();
   }
 
+  @Test
+  public void testCache() throws IOException {
+    add(1);
+    add(2);
+    assertEquals(1, get(1));
+    assertEquals(1, store.cache.size());
+    assertEquals(1, get(1)); // from the cache
+
+    store.trim(1);
+    assertEquals(0, store.cache.size());
+    assertEquals(0, get(1));
+    assertEquals(2, get(2));
+  }
+
+  @Test
+  public void testGetRange() throws IOException {
+    for (long i = 1; i <= 10; i++) {
+      add(i);
+    }
+    store.trim(3);
+    List<String> events = store.get(2, 20);
+    assertEquals(9, events.size());
+    assertNull(events.get(0));
+    assertNull(events.get(1));
+    for (int i = 2; i < 9; i++) {
+      assertEquals("" + (i + 2), events.get(i));
+    }
+    assertTrue(store.get(11, 20).isEmpty());
+
+    assertEquals("4\n", new String(store.getBytes(4), StandardCharsets.UTF_8));
+    assertEquals("5\n", new String(store.getBytes(5, 5).get(0), StandardCharsets.UTF_8));
+    assertNull(store.getBytes(3));
+  }
+
+  @Test
+  public void testGetHeadMaxAge() throws IOException {
+    add(1);
+    assertEquals(1, store.getHead());
+    new FsStore(myBase).add("2"); // another node
+    assertEquals(1, store.getHead(1, TimeUnit.HOURS));
+    assertEquals(2, store.getHead(0, TimeUnit.MILLISECONDS));
+    assertEquals(2, store.getHead(1, TimeUnit.HOURS));
+  }
+
+  @Test
+  public void testHasHeadChanged() throws IOException {
+    add(1);
+    long head = store.getHead();
+    assertFalse(store.hasHeadChanged(head));
+    assertTrue(store.hasHeadChanged(head - 1));
+    new FsStore(myBase).add("2"); // another node
+    assertTrue(store.hasHeadChanged(head));
+    head = store.getHead();
+    assertFalse(store.hasHeadChanged(head));
+
+    FsStore.Config config = new FsStore.Config();
+    config.headReadInterval = 0;
+    FsStore reading = new FsStore(myBase, config);
+    assertTrue(reading.hasHeadChanged(reading.getHead()));
+  }
+
+  @Test
+  public void testAddAllWithoutGroupCommit() throws IOException {
+    long head = store.getHead();
+    long updates = store.stores.head.totalUpdates;
+    store.addAll(Arrays.asList("1", "2", "3"));
+    assertEquals(head + 3, store.getHead());
+    assertEquals(updates + 3, store.stores.head.totalUpdates); // no <uuid>.<count> transaction
+
+    FsStore.Config config = new FsStore.Config();
+    config.groupCommitSize = 100;
+    FsStore group = new FsStore(myBase, config);
+    group.addAll(Arrays.asList("4", "5", "6"));
+    assertEquals(head + 6, group.getHead());
+    assertEquals(1, group.stores.head.totalUpdates);
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    FsStore.Config config = new FsStore.Config();
+    config.groupCommitSize = 100;
+    config.groupCommitWindow = 50;
+    FsStore group = new FsStore(myBase, config);
+    long head = group.getHead();
+    List<Thread> running = new LinkedList<>();
+    for (long i = 1; i <= 10; i++) {
+      String event = "" + (head + i);
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  group.add(event);
+                } catch (IOException e) {
+                }
+              });
+      thread.start();
+      running.add(thread);
+    }
+    for (Thread thread : running) {
+      thread.join();
+    }
+
+    assertEquals(head + 10, group.getHead());
+    assertTrue(group.groupCommit.totalCommits < 10);
+    Set<Long> found = new HashSet<>();
+    for (long i = head + 1; i <= head + 10; i++) {
+      found.add(get(i));
+    }
+    for (long i = head + 1; i <= head + 10; i++) {
+      assertTrue(found.contains(i));
+    }
+  }
+
   @Test
   public void testTrim() throws IOException {
     add();
@@ -142,6 +261,95 @@ public class FsStoreTest extends TestCase {
     assertEquals(3, get(3)); // cannot delete head
   }
 
+  @Test
+  public void testTrimRange() throws IOException {
+    List<String> events = new ArrayList<>();
+    for (long i = 1; i <= 2100; i++) {
+      events.add("" + i);
+    }
+    store.addAll(events);
+    store.trim(2049);
+    assertEquals(2050, store.getTail());
+    assertNull(store.get(2049));
+    assertEquals("2050", store.get(2050));
+    assertFalse(Files.exists(store.paths.events.dir(1999))); // deleted whole
+    assertFalse(Files.exists(store.paths.events.path(2049)));
+    assertTrue(Files.exists(store.paths.events.path(2050)));
+  }
+
+  @Test
+  public void testMetadata() throws IOException {
+    FsStore.Config config = new FsStore.Config();
+    config.housekeepingBacklog = 0; // store the metadata inline
+    config.groupCommitSize = 100;
+    FsStore inline = new FsStore(myBase, config);
+    long head = inline.getHead();
+    EventMetadata metadata = new EventMetadata("ref-updated", "p", "refs/heads/master", 0, 1);
+    inline.add("1", metadata); // group committed
+    inline.add("2");
+    inline.addAll(Arrays.asList("3", "4"), Arrays.asList(null, metadata));
+
+    List<EventMetadata> found = inline.getMetadata(head + 1, head + 10);
+    assertEquals(4, found.size()); // bounded by the head
+    assertEquals(metadata.encode(), found.get(0).encode());
+    assertNull(found.get(1));
+    assertNull(found.get(2));
+    assertEquals(metadata.encode(), found.get(3).encode());
+
+    inline.trim(head + 1);
+    assertNull(inline.getMetadata(head + 1, head + 1).get(0));
+    assertFalse(Files.exists(inline.paths.metadata.path(head + 1)));
+  }
+
+  @Test
+  public void testMetadataTakeover() throws IOException {
+    FsStore.Config config = new FsStore.Config();
+    config.housekeepingBacklog = 0; // store the metadata inline
+    FsStore inline = new FsStore(myBase, config);
+    EventSequence seq = inline.stores.head;
+    EventMetadata metadata = new EventMetadata("ref-updated", "p", "refs/heads/master", 0, 1);
+    try (EventSequence.EventBuilder b = new EventSequence.EventBuilder(seq.paths, "1\n")) {
+      assertTrue(Fs.tryAtomicMove(b.dir, seq.paths.update)); // Phase 1
+      seq.createUniqueUpdate(b.uuid, false, 10); // another actor completes it
+      EventSequence.UniqueUpdate update = seq.createUniqueUpdate(b.uuid, true, 10);
+      assertFalse(update.myCommit);
+
+      inline.storeMetadata(update, Collections.singletonList(metadata));
+    }
+    long head = inline.getHead();
+    assertEquals("1", inline.get(head));
+    assertNull(inline.getMetadata(head, head).get(0));
+    // where the advanced head read by the taken over update would have put it
+    assertFalse(Files.exists(inline.paths.metadata.path(head + 1)));
+  }
+
+  @Test
+  public void testRelayout() throws IOException {
+    List<String> events = new ArrayList<>();
+    for (long i = 1; i <= 150; i++) {
+      events.add("" + i);
+    }
+    store.addAll(events);
+    store.trim(10);
+
+    FsStore.Config config = new FsStore.Config();
+    config.shardOrders = 2;
+    config.housekeepingBacklog = 0; // relayout explicitly
+    FsStore relaid = new FsStore(myBase, config);
+    assertEquals(1, relaid.legacy.size());
+    assertEquals("11", relaid.get(11)); // from the legacy layout
+    assertTrue(relaid.exists(150));
+
+    assertEquals(140, relaid.relayout(1000));
+    assertTrue(relaid.legacy.isEmpty());
+    assertFalse(Files.exists(store.paths.events.path(150)));
+    assertTrue(Files.exists(relaid.paths.events.path(150)));
+    assertFalse(Files.exists(relaid.paths.events.path(10))); // trimmed
+    assertEquals("150", new FsStore(myBase, config).get(150));
+    relaid.add("151");
+    assertEquals("151", relaid.get(151));
+  }
+
   @Test
   public void testCount() throws Exception {
     for (long i = 0; i < count; i++) {
@@ -0,0 +1,62 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FsWatcherTest extends TestCase {
+  public Path myBase;
+  public FsStore store;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    myBase = Files.createTempDirectory("events-FsWatcher");
+    store = new FsStore(myBase);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(myBase);
+  }
+
+  @Test
+  public void testWatchHead() throws Exception {
+    Semaphore changes = new Semaphore(0);
+    FsWatcher watcher = new FsWatcher(store.getHeadFile(), changes::release);
+    watcher.start();
+    try {
+      new FsStore(myBase).add("1"); // another process
+      assertTrue(changes.tryAcquire(10, TimeUnit.SECONDS));
+    } finally {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  public void testIsRemote() {
+    assertTrue(FsWatcher.isRemote("nfs4"));
+    assertTrue(FsWatcher.isRemote("fuse.sshfs"));
+    assertFalse(FsWatcher.isRemote("ext4"));
+    assertFalse(FsWatcher.isRemote("tmpfs"));
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class HousekeeperTest extends TestCase {
+  @Test
+  public void testDirect() {
+    AtomicInteger runs = new AtomicInteger();
+    Housekeeper.DIRECT.execute(runs::incrementAndGet);
+    assertEquals(1, runs.get());
+    Housekeeper.DIRECT.executeOnce(this, runs::incrementAndGet);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testBackgroundAndOverflow() throws Exception {
+    Housekeeper housekeeper = new Housekeeper(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    Semaphore done = new Semaphore(0);
+    housekeeper.execute(
+        () -> {
+          try {
+            blocked.await();
+          } catch (InterruptedException e) {
+          }
+          done.release();
+        });
+    housekeeper.execute(done::release); // waits in the backlog
+    AtomicInteger inline = new AtomicInteger();
+    housekeeper.execute(inline::incrementAndGet); // backlog full
+    assertEquals(1, inline.get());
+    assertEquals(1, housekeeper.overflows.get());
+
+    blocked.countDown();
+    assertTrue(done.tryAcquire(2, 10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    Housekeeper housekeeper = new Housekeeper(10);
+    housekeeper.execute(
+        () -> {
+          throw new IllegalStateException("logged, not propagated");
+        });
+    housekeeper.shutdown();
+    assertFalse(housekeeper.isBackground());
+    AtomicInteger inline = new AtomicInteger();
+    housekeeper.execute(inline::incrementAndGet);
+    assertEquals(1, inline.get());
+    assertEquals(0, housekeeper.overflows.get());
+  }
+
+  @Test
+  public void testExecuteOnce() throws Exception {
+    Housekeeper housekeeper = new Housekeeper(10);
+    CountDownLatch blocked = new CountDownLatch(1);
+    housekeeper.execute(
+        () -> {
+          try {
+            blocked.await();
+          } catch (InterruptedException e) {
+          }
+        });
+    AtomicInteger runs = new AtomicInteger();
+    housekeeper.executeOnce("key", runs::incrementAndGet);
+    housekeeper.executeOnce("key", runs::incrementAndGet); // still pending
+
+    blocked.countDown();
+    Semaphore done = new Semaphore(0);
+    housekeeper.execute(done::release);
+    assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testTransactionsDeleted() throws Exception {
+    Path base = Files.createTempDirectory("events-Housekeeper");
+    try {
+      FsSequence seq = new FsSequence(base);
+      Housekeeper housekeeper = new Housekeeper(10);
+      seq.setHousekeeper(housekeeper);
+      seq.initFs();
+      seq.spinIncrement(10);
+      Semaphore done = new Semaphore(0);
+      housekeeper.execute(done::release);
+      assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+      assertEquals(0, seq.paths.delete.toFile().list().length);
+      assertEquals(0, seq.paths.update.toFile().list().length);
+    } finally {
+      Fs.tryRecursiveDelete(base);
+    }
+  }
+}
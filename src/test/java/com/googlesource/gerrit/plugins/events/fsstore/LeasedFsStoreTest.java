@@ -0,0 +1,190 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import com.googlesource.gerrit.plugins.events.EventMetadata;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeasedFsStoreTest extends TestCase {
+  private static final Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+
+  private Path myBase;
+  private FsStore.Config config;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    myBase = Files.createTempDirectory(dir, "LeasedFsStoreTest");
+    config = new FsStore.Config();
+    config.leaseSize = 10;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(myBase);
+  }
+
+  private List<String> getAll(FsStore store) throws IOException {
+    List<String> events = new ArrayList<>();
+    for (String event : store.get(store.getTail(), store.getHead())) {
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  @Test
+  public void testAdd() throws IOException {
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    assertEquals(0, store.getHead());
+    store.add("Event 1");
+    assertEquals(10, store.getHead()); // the rest of the lease is gaps
+    assertEquals("Event 1", store.get(1));
+    assertNull(store.get(2));
+
+    store.addAll(Arrays.asList("Event 2", "Event 3"));
+    assertEquals(20, store.getHead());
+    assertEquals("Event 2", store.get(11));
+    assertEquals(Arrays.asList("Event 1", "Event 2", "Event 3"), getAll(store));
+  }
+
+  @Test
+  public void testFullLeases() throws IOException {
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    List<String> events = new ArrayList<>();
+    for (int i = 1; i <= 25; i++) {
+      events.add("Event " + i);
+    }
+    store.addAll(events);
+    assertEquals(30, store.getHead());
+    for (long i = 1; i <= 25; i++) {
+      assertEquals("Event " + i, store.get(i));
+    }
+  }
+
+  @Test
+  public void testOpenLeaseHidesLaterBlocks() throws IOException {
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    LeasedFsStore other = new LeasedFsStore(myBase, config);
+    synchronized (store) {
+      store.store("Event 1"); // block 1 stays open
+    }
+    other.add("Event 11");
+    assertEquals(1, other.getHead());
+    assertEquals(1, new LeasedFsStore(myBase, config).getHead());
+
+    synchronized (store) {
+      store.close(store.lease);
+      store.lease = null;
+    }
+    assertEquals(20, other.getHead());
+    assertEquals(Arrays.asList("Event 1", "Event 11"), getAll(other));
+  }
+
+  @Test
+  public void testExpiredLeaseIsClosed() throws Exception {
+    config.leaseTimeout = 100;
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    LeasedFsStore other = new LeasedFsStore(myBase, config);
+    synchronized (store) {
+      store.store("Event 1"); // then dies with block 1 open
+    }
+    other.add("Event 11");
+    assertEquals(1, other.getHead());
+    Thread.sleep(1100); // mtimes may have a 1s granularity
+    assertEquals(20, other.getHead());
+    assertEquals(Arrays.asList("Event 1", "Event 11"), getAll(other));
+  }
+
+  @Test
+  public void testSwitchFromFsStore() throws IOException {
+    FsStore fs = new FsStore(myBase);
+    fs.add("Event 1");
+    fs.add("Event 2");
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    assertEquals(2, store.getHead());
+    store.add("Event 3");
+    assertEquals(12, store.getHead());
+    assertEquals(Arrays.asList("Event 1", "Event 2", "Event 3"), getAll(store));
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    for (int i = 1; i <= 3; i++) {
+      store.add("Event " + i);
+    }
+    assertEquals(30, store.getHead());
+    store.trim(15);
+    assertEquals(16, store.getTail());
+    assertNull(store.get(11));
+    assertFalse(Files.exists(store.closedMarker(1)));
+    assertEquals(Arrays.asList("Event 3"), getAll(store));
+
+    LeasedFsStore store2 = new LeasedFsStore(myBase, config);
+    assertEquals(30, store2.getHead());
+  }
+
+  @Test
+  public void testTrimMetadata() throws IOException {
+    config.housekeepingBacklog = 0; // store the metadata inline
+    LeasedFsStore store = new LeasedFsStore(myBase, config);
+    EventMetadata metadata = new EventMetadata("ref-updated", "p", "refs/heads/master", 0, 1);
+    for (int i = 1; i <= 3; i++) {
+      store.add("Event " + i, metadata); // 1, 11 and 21
+    }
+    assertTrue(Files.exists(store.paths.metadata.path(11)));
+    store.trim(15);
+    assertFalse(Files.exists(store.paths.metadata.path(1)));
+    assertFalse(Files.exists(store.paths.metadata.path(11)));
+    assertNotNull(store.getMetadata(21, 21).get(0));
+  }
+
+  @Test
+  public void testConcurrentNodes() throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      LeasedFsStore node = new LeasedFsStore(myBase, config);
+      int nodeNum = t;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  for (int i = 0; i < 25; i++) {
+                    node.add("Event " + nodeNum + "-" + i);
+                  }
+                } catch (IOException e) {
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(100, getAll(new LeasedFsStore(myBase, config)).size());
+  }
+}
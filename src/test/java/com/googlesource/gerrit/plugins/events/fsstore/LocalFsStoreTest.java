@@ -0,0 +1,140 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.fsstore;
+
+import com.googlesource.gerrit.plugins.events.EventMetadata;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalFsStoreTest extends TestCase {
+  private static final Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+
+  private Path myBase;
+  private LocalFsStore store;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    myBase = Files.createTempDirectory(dir, "LocalFsStoreTest");
+    store = new LocalFsStore(myBase);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(myBase);
+  }
+
+  @Test
+  public void testAdd() throws IOException {
+    assertEquals(0, store.getHead());
+    assertEquals(0, store.getTail());
+    store.add("Event 1");
+    store.addAll(Arrays.asList("Event 2", "Event 3"));
+    assertEquals(3, store.getHead());
+    assertEquals(1, store.getTail());
+
+    LocalFsStore store2 = new LocalFsStore(myBase);
+    assertEquals(store.getUuid(), store2.getUuid());
+    for (long i = 1; i <= 3; i++) {
+      assertEquals("Event " + i, store2.get(i));
+    }
+    assertNull(store2.get(4));
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      LocalFsStore s = new LocalFsStore(myBase);
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  for (int i = 0; i < 25; i++) {
+                    s.add("Event");
+                  }
+                } catch (IOException e) {
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(100, store.getHead());
+    for (long i = 1; i <= 100; i++) {
+      assertEquals("Event", store.get(i));
+    }
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    for (long i = 1; i <= 10; i++) {
+      store.add("Event " + i);
+    }
+    store.trim(4);
+    assertEquals(5, store.getTail());
+    assertNull(store.get(4));
+    assertEquals("Event 5", store.get(5));
+
+    store.trim(20); // keeps the head
+    assertEquals(10, store.getTail());
+    assertEquals("Event 10", store.get(10));
+  }
+
+  @Test
+  public void testTrimMetadata() throws IOException {
+    FsStore.Config config = new FsStore.Config();
+    config.housekeepingBacklog = 0; // store the metadata inline
+    LocalFsStore inline = new LocalFsStore(myBase, config);
+    EventMetadata metadata = new EventMetadata("ref-updated", "p", "refs/heads/master", 0, 1);
+    for (long i = 1; i <= 3; i++) {
+      inline.add("Event " + i, metadata);
+    }
+    assertTrue(Files.exists(inline.paths.metadata.path(1)));
+    inline.trim(2);
+    assertFalse(Files.exists(inline.paths.metadata.path(1)));
+    assertFalse(Files.exists(inline.paths.metadata.path(2)));
+    assertNotNull(inline.getMetadata(3, 3).get(0));
+  }
+
+  @Test
+  public void testSwitchToAndFromFsStore() throws IOException {
+    store.addAll(Arrays.asList("Event 1", "Event 2"));
+    store.trim(1);
+
+    FsStore fs = new FsStore(myBase);
+    assertEquals(2, fs.getHead());
+    assertEquals(2, fs.getTail());
+    assertEquals("Event 2", fs.get(2));
+    fs.add("Event 3");
+
+    LocalFsStore local = new LocalFsStore(myBase);
+    assertEquals(3, local.getHead());
+    local.add("Event 4");
+    assertEquals("Event 3", local.get(3));
+    assertEquals("Event 4", new FsStore(myBase).get(4));
+  }
+}
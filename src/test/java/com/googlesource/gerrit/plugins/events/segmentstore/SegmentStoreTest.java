@@ -0,0 +1,191 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.events.segmentstore;
+
+import com.googlesource.gerrit.plugins.events.fsstore.Fs;
+import com.googlesource.gerrit.plugins.events.fsstore.FsStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentStoreTest extends TestCase {
+  private static String dir = "events-SegmentStore";
+  private Path myBase;
+  private SegmentStore store;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    myBase = Files.createTempDirectory(dir);
+    store = new SegmentStore(myBase, 64);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Fs.tryRecursiveDelete(myBase);
+  }
+
+  @Test
+  public void testInit() throws IOException {
+    UUID uuid = store.getUuid();
+    assertEquals(0, store.getHead());
+    assertEquals(0, store.getTail());
+    assertNull(store.get(1));
+
+    SegmentStore store2 = new SegmentStore(myBase, 64);
+    assertEquals(uuid, store2.getUuid());
+    assertEquals(0, store2.getHead());
+  }
+
+  @Test
+  public void testAdd() throws IOException {
+    for (long i = 1; i <= 100; i++) {
+      store.add("Event " + i);
+      assertEquals(i, store.getHead());
+      assertEquals(1, store.getTail());
+    }
+    assertTrue(store.segments.size() > 1); // rolled over
+
+    SegmentStore store2 = new SegmentStore(myBase, 64);
+    assertEquals(100, store2.getHead());
+    for (long i = 1; i <= 100; i++) {
+      assertEquals("Event " + i, store2.get(i));
+    }
+    assertNull(store2.get(101));
+  }
+
+  @Test
+  public void testAddAll() throws IOException {
+    store.add("Event 1");
+    store.addAll(Arrays.asList("Event 2", "Event 3", "Event 4"));
+    assertEquals(4, store.getHead());
+    for (long i = 1; i <= 4; i++) {
+      assertEquals("Event " + i, store.get(i));
+    }
+  }
+
+  @Test
+  public void testGetRange() throws IOException {
+    for (long i = 1; i <= 100; i++) {
+      store.add("Event " + i);
+    }
+    store.trim(10);
+    List<String> events = store.get(5, 200);
+    assertEquals(96, events.size());
+    for (long i = 5; i <= 100; i++) {
+      String event = events.get((int) (i - 5));
+      assertEquals(i <= 10 ? null : "Event " + i, event);
+    }
+    assertTrue(store.get(101, 110).isEmpty());
+  }
+
+  @Test
+  public void testSeenByOtherStore() throws IOException {
+    SegmentStore store2 = new SegmentStore(myBase, 64);
+    for (long i = 1; i <= 50; i++) {
+      store.add("Event " + i);
+      assertEquals(i, store2.getHead());
+      assertEquals("Event " + i, store2.get(i));
+    }
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    for (long i = 1; i <= 100; i++) {
+      store.add("Event " + i);
+    }
+    int segments = store.segments.size();
+
+    store.trim(1);
+    assertEquals(2, store.getTail());
+    assertNull(store.get(1));
+    assertEquals("Event 2", store.get(2));
+
+    store.trim(50);
+    assertEquals(51, store.getTail());
+    assertNull(store.get(50));
+    assertEquals("Event 51", store.get(51));
+    assertTrue(store.segments.size() < segments);
+
+    store.trim(100);
+    assertEquals(100, store.getTail());
+    assertEquals("Event 100", store.get(100)); // cannot delete head
+
+    SegmentStore store2 = new SegmentStore(myBase, 64);
+    assertEquals(100, store2.getTail());
+    assertNull(store2.get(99));
+  }
+
+  @Test
+  public void testTrimByOtherStore() throws IOException {
+    SegmentStore large = new SegmentStore(myBase, SegmentStore.DEFAULT_SEGMENT_SIZE);
+    for (long i = 1; i <= 10; i++) {
+      large.add("Event " + i);
+    }
+    assertEquals("Event 5", large.get(5));
+
+    new SegmentStore(myBase, SegmentStore.DEFAULT_SEGMENT_SIZE).trim(5);
+    assertEquals(1, large.segments.size()); // still holds the trimmed events
+    assertNull(large.get(5)); // near the cached tail
+    assertEquals("Event 6", large.get(6));
+    assertEquals(6, large.cachedTail);
+  }
+
+  @Test
+  public void testRebuildIndex() throws IOException {
+    for (long i = 1; i <= 100; i++) {
+      store.add("Event " + i);
+    }
+    for (Segment segment : store.segments.values()) {
+      Files.delete(segment.index);
+    }
+
+    SegmentStore store2 = new SegmentStore(myBase, 64);
+    assertEquals(100, store2.getHead());
+    for (long i = 1; i <= 100; i++) {
+      assertEquals("Event " + i, store2.get(i));
+    }
+  }
+
+  @Test
+  public void testAdopt() throws IOException {
+    Path fsBase = myBase.resolve("fs");
+    FsStore fs = new FsStore(fsBase);
+    for (long i = 1; i <= 20; i++) {
+      fs.add("Event " + i);
+    }
+    fs.trim(5);
+
+    SegmentStore adopted = new SegmentStore(myBase.resolve("adopted"), 64, fsBase);
+    assertEquals(fs.getUuid(), adopted.getUuid());
+    assertEquals(20, adopted.getHead());
+    assertEquals(6, adopted.getTail());
+    assertNull(adopted.get(5));
+    for (long i = 6; i <= 20; i++) {
+      assertEquals("Event " + i, adopted.get(i));
+    }
+
+    fs.add("Event 21"); // Only adopted once
+    adopted = new SegmentStore(myBase.resolve("adopted"), 64, fsBase);
+    assertEquals(20, adopted.getHead());
+  }
+}